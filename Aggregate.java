@@ -0,0 +1,39 @@
+// Running sum/min/max/count of the values passed to a function like SUM(A1:B2,10)
+public final class Aggregate {
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private long count;
+
+    // Add a single value
+    public void add(double value) {
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        count++;
+    }
+
+    // Add a whole group of values at once, e.g. a range answered by an AggregateIndex
+    public void addAll(double sum, double min, double max, long count) {
+        this.sum += sum;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+        this.count += count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,27 @@
+// Functions that can be used in formulas (MAX, MIN, SUM, AVERAGE)
+public enum AggregateFunction {
+    MAX, MIN, SUM, AVERAGE;
+
+    // Find a function by its name in a formula, or null if there is none
+    public static AggregateFunction fromName(String name) {
+        for (AggregateFunction function : values()) {
+            if (function.name().equals(name)) {
+                return function;
+            }
+        }
+        return null;
+    }
+
+    // Compute the function result from all of its argument values
+    public double apply(Aggregate aggregate) {
+        if (this != SUM && aggregate.getCount() == 0) {
+            throw new IllegalArgumentException("Empty range.");
+        }
+        return switch (this) {
+            case MAX -> aggregate.getMax();
+            case MIN -> aggregate.getMin();
+            case SUM -> aggregate.getSum();
+            case AVERAGE -> aggregate.getSum() / aggregate.getCount();
+        };
+    }
+}
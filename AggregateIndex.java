@@ -0,0 +1,155 @@
+import java.util.Arrays;
+
+// Index over the rows of one column holding the sum, min and max of the cell values, plus how
+// many cells have no current value (text, or formulas waiting to be recalculated).
+// Empty rows count as 0, like in a scanned range, so unused leaves need no initialisation.
+// It has two levels, so memory follows the blocks of rows in use rather than the last row:
+// a segment tree over the rows of each block of CellStore.BLOCK_SIZE rows, made when the block
+// gets its first cell, and a segment tree over the totals of the blocks.
+public class AggregateIndex {
+    private static final int BLOCK_SHIFT = 10; // CellStore.BLOCK_SIZE rows per block tree
+
+    private Tree[] blocks = new Tree[1]; // block index -> tree over its rows, null while the block has no cells
+    private Tree totals = new Tree(1); // block index -> totals of the block
+
+    // Update the value of a row
+    public void update(int row, double value, boolean isStale) {
+        int block = row >>> BLOCK_SHIFT;
+        if (block >= blocks.length) {
+            blocks = Arrays.copyOf(blocks, Math.max(block + 1, blocks.length * 2));
+        }
+        Tree tree = blocks[block];
+        if (tree == null) {
+            tree = new Tree(CellStore.BLOCK_SIZE);
+            blocks[block] = tree;
+        }
+        tree.set(row & (CellStore.BLOCK_SIZE - 1), isStale ? 0 : value, isStale ? 0 : value, isStale ? 0 : value, isStale ? 1 : 0);
+        if (block >= totals.capacity) {
+            totals = totals.grow(block);
+        }
+        totals.set(block, tree.sum[1], tree.min[1], tree.max[1], tree.stale[1]);
+    }
+
+    // Add the rows from..to (inclusive) to an aggregate in O(log n);
+    // returns false without touching it when a row in the range has no current value
+    public boolean query(int from, int to, Aggregate aggregate) {
+        Totals range = new Totals();
+        int firstBlock = from >>> BLOCK_SHIFT;
+        int lastBlock = to >>> BLOCK_SHIFT;
+        int offset = CellStore.BLOCK_SIZE - 1;
+        if (firstBlock == lastBlock) {
+            queryBlock(firstBlock, from & offset, to & offset, range);
+        } else {
+            queryBlock(firstBlock, from & offset, offset, range);
+            if (firstBlock + 1 < lastBlock) {
+                totals.query(firstBlock + 1, lastBlock - 1, range);
+            }
+            queryBlock(lastBlock, 0, to & offset, range);
+        }
+        if (range.stale > 0) {
+            return false;
+        }
+        aggregate.addAll(range.sum, range.min, range.max, to - from + 1);
+        return true;
+    }
+
+    // Rows from..to of one block; a block without cells counts as 0
+    private void queryBlock(int block, int from, int to, Totals range) {
+        Tree tree = block < blocks.length ? blocks[block] : null;
+        if (tree == null) {
+            range.add(0, 0, 0, 0);
+        } else {
+            tree.query(from, to, range);
+        }
+    }
+
+    // Sum, min, max and stale cells of part of a column, added up from nodes
+    private static final class Totals {
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        int stale;
+
+        void add(double sum, double min, double max, int stale) {
+            this.sum += sum;
+            this.min = Math.min(this.min, min);
+            this.max = Math.max(this.max, max);
+            this.stale += stale;
+        }
+    }
+
+    // Segment tree over a power-of-two number of leaves
+    private static final class Tree {
+        final int capacity; // number of leaves
+        final double[] sum;
+        final double[] min;
+        final double[] max;
+        final int[] stale;
+
+        Tree(int leaves) {
+            capacity = leaves;
+            sum = new double[2 * leaves];
+            min = new double[2 * leaves];
+            max = new double[2 * leaves];
+            stale = new int[2 * leaves];
+        }
+
+        void set(int leaf, double leafSum, double leafMin, double leafMax, int leafStale) {
+            int node = capacity + leaf;
+            sum[node] = leafSum;
+            min[node] = leafMin;
+            max[node] = leafMax;
+            stale[node] = leafStale;
+            for (node >>= 1; node > 0; node >>= 1) {
+                combine(node);
+            }
+        }
+
+        // Add the leaves from..to (inclusive) to the totals; leaves past the end count as 0
+        void query(int from, int to, Totals range) {
+            if (to >= capacity) {
+                range.add(0, 0, 0, 0);
+            }
+            int left = capacity + from;
+            int right = capacity + Math.min(to, capacity - 1) + 1;
+            while (left < right) {
+                if ((left & 1) == 1) {
+                    range.add(sum[left], min[left], max[left], stale[left]);
+                    left++;
+                }
+                if ((right & 1) == 1) {
+                    right--;
+                    range.add(sum[right], min[right], max[right], stale[right]);
+                }
+                left >>= 1;
+                right >>= 1;
+            }
+        }
+
+        // A copy with the number of leaves doubled until the leaf fits
+        Tree grow(int leaf) {
+            int leaves = capacity;
+            while (leaves <= leaf) {
+                leaves <<= 1;
+            }
+            Tree grown = new Tree(leaves);
+            System.arraycopy(sum, capacity, grown.sum, leaves, capacity);
+            System.arraycopy(min, capacity, grown.min, leaves, capacity);
+            System.arraycopy(max, capacity, grown.max, leaves, capacity);
+            System.arraycopy(stale, capacity, grown.stale, leaves, capacity);
+            for (int node = leaves - 1; node > 0; node--) {
+                grown.combine(node);
+            }
+            return grown;
+        }
+
+        private void combine(int node) {
+            int left = node << 1;
+            int right = left | 1;
+            sum[node] = sum[left] + sum[right];
+            min[node] = Math.min(min[left], min[right]);
+            max[node] = Math.max(max[left], max[right]);
+            stale[node] = stale[left] + stale[right];
+        }
+    }
+}
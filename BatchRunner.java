@@ -0,0 +1,163 @@
+import java.io.*;
+import java.util.*;
+
+// Runs a script of commands without the interactive menu, one command per line:
+//   set A1 =B1+2   set a cell (nothing after the name empties it)
+//   get A1         the cell content, as option 2 of the menu shows it
+//   eval A1        the value of the cell
+//   save FILE      load FILE      show      exit
+//   import FILE    export FILE     CSV, with the first field in A1; import gives the cells changed
+// Blank lines and lines starting with # are skipped. Consecutive set commands are applied
+// together as one atomic edit, so what they affect is recalculated once instead of after every
+// one of them. Only the state after the whole run is checked: a circular reference that a later
+// set of the run breaks again (set A1 =B1, set B1 =A1, set B1 5) is not an error.
+//
+// Every command writes one tab-separated record to the output: line number, "ok" or "error",
+// microseconds taken, and the result or error message (tabs and line breaks escaped as \t, \n).
+// The time of a run of sets is given to its last set. show first writes a record per cell:
+// line number, "cell", name, content.
+public final class BatchRunner {
+    private final Spreadsheet spreadsheet;
+    private final PrintWriter out;
+    private final List<PendingSet> pending = new ArrayList<>(); // sets waiting to be applied together
+    private int failures;
+
+    private record PendingSet(int line, String cell, String content) {
+    }
+
+    public BatchRunner(Spreadsheet spreadsheet, Writer out) {
+        this.spreadsheet = spreadsheet;
+        this.out = new PrintWriter(out instanceof BufferedWriter ? out : new BufferedWriter(out, 1 << 16));
+    }
+
+    // Run every command of a script; returns the number of commands that failed
+    public int run(Reader script) throws IOException {
+        BufferedReader reader = new BufferedReader(script, 1 << 16);
+        String text;
+        int line = 0;
+        while ((text = reader.readLine()) != null) {
+            line++;
+            String command = text.strip();
+            if (command.isEmpty() || command.startsWith("#")) {
+                continue;
+            }
+            if (!execute(line, command)) {
+                break;
+            }
+        }
+        applyPending();
+        out.flush();
+        return failures;
+    }
+
+    // Run or queue a command; returns false for exit
+    private boolean execute(int line, String command) {
+        String[] words = command.split("\\s+", 2);
+        String name = words[0].toLowerCase(Locale.ROOT);
+        String argument = words.length > 1 ? words[1] : "";
+        if (name.equals("set") && !argument.isEmpty()) {
+            String[] cellAndContent = argument.split("\\s+", 2);
+            pending.add(new PendingSet(line, cellAndContent[0].toUpperCase(Locale.ROOT),
+                    cellAndContent.length > 1 ? cellAndContent[1] : ""));
+            return true;
+        }
+        applyPending(); // a command may read what the sets before it changed
+        if (name.equals("exit")) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            String result = switch (name) {
+                case "get" -> {
+                    CellReference cell = CellReference.parse(required(name, argument).toUpperCase(Locale.ROOT));
+                    yield spreadsheet.getCellContent(cell.getColumn(), cell.getRow());
+                }
+                case "eval" -> {
+                    CellReference cell = CellReference.parse(required(name, argument).toUpperCase(Locale.ROOT));
+                    yield Double.toString(spreadsheet.getCellValue(cell.getColumn(), cell.getRow()));
+                }
+                case "save" -> {
+                    spreadsheet.saveSpreadsheet(required(name, argument));
+                    yield "";
+                }
+                case "load" -> {
+                    spreadsheet.loadSpreadsheet(required(name, argument));
+                    yield "";
+                }
+                case "import" -> {
+                    yield Long.toString(spreadsheet.importCsv(required(name, argument)).cells());
+                }
+                case "export" -> {
+                    spreadsheet.exportCsv(required(name, argument));
+                    yield "";
+                }
+                case "show" -> {
+                    int[] count = new int[1];
+                    spreadsheet.forEachCell((cell, content) -> {
+                        out.println(line + "\tcell\t" + cell + "\t" + escape(content));
+                        count[0]++;
+                    });
+                    yield Integer.toString(count[0]);
+                }
+                case "set" -> throw new IllegalArgumentException("Missing cell for set");
+                default -> throw new IllegalArgumentException("Unknown command: " + words[0]);
+            };
+            record(line, null, System.nanoTime() - start, result);
+        } catch (IllegalArgumentException | IOException e) {
+            record(line, e.getMessage(), System.nanoTime() - start, null);
+        }
+        return true;
+    }
+
+    // Apply the queued sets in one batch. If the batch is refused (a bad cell name or a circular
+    // reference), nothing of it was applied, and the sets are applied one by one instead to find
+    // the lines that fail.
+    private void applyPending() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        String[] errors = new String[pending.size()];
+        Map<String, String> contents = new LinkedHashMap<>();
+        for (PendingSet set : pending) {
+            contents.remove(set.cell()); // a cell set twice keeps the later content
+            contents.put(set.cell(), set.content());
+        }
+        try {
+            spreadsheet.setCellContents(contents);
+        } catch (IllegalArgumentException e) {
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    CellReference cell = CellReference.parse(pending.get(i).cell());
+                    spreadsheet.setCellContent(cell.getColumn(), cell.getRow(), pending.get(i).content());
+                } catch (IllegalArgumentException failure) {
+                    errors[i] = failure.getMessage();
+                }
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        for (int i = 0; i < pending.size(); i++) {
+            record(pending.get(i).line(), errors[i], i == pending.size() - 1 ? nanos : 0, "");
+        }
+        pending.clear();
+    }
+
+    private void record(int line, String error, long nanos, String result) {
+        if (error != null) {
+            failures++;
+        }
+        out.println(line + "\t" + (error == null ? "ok" : "error") + "\t" + nanos / 1000 + "\t"
+                + escape(error == null ? result : error));
+    }
+
+    private static String required(String command, String argument) {
+        if (argument.isEmpty()) {
+            throw new IllegalArgumentException("Missing argument for " + command);
+        }
+        return argument;
+    }
+
+    private static String escape(String text) {
+        return text == null ? "" : text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+}
@@ -1,33 +1,56 @@
-// a single cell in the spreadsheet
+// a single text or formula cell in the spreadsheet (plain numbers are stored in the CellStore columns)
 public class Cell {
-    private String content; // Cell: can be text or numeric
-    private Double evaluatedValue; // Calculated value of the cell (if it's a formula
+    private String content; // Cell: can be text or numeric; null for a copied formula
+    private Formula formula; // content compiled once, evaluated without re-parsing
+    private long key; // where a copied formula is, so its text can be rendered from the shared formula
     public Cell() {
         this.content = ""; // empty cell
+        this.formula = Formula.compile(content);
     }
 
-    //set the cell content
+    public Cell(String content) {
+        this.content = content;
+        this.formula = Formula.compile(content);
+    }
+
+    // a cell whose content was compiled before (e.g. read from a snapshot)
+    public Cell(String content, Formula formula) {
+        this.content = content;
+        this.formula = formula;
+    }
+
+    // a copied formula: it shares a compiled formula with the cells of the same shape and keeps
+    // no text of its own
+    public Cell(long key, Formula formula) {
+        this.key = key;
+        this.formula = formula;
+    }
+
+    //set the cell content and compile it
     public void setContent(String content) {
         this.content = content;
+        this.formula = Formula.compile(content);
     }
 
     //get the cell content
     public String getContent() {
-        return this.content;
+        return this.content != null ? this.content : this.formula.getText(key);
     }
-    // Set the evaluated value
-    public void setEvaluatedValue(Double value) {
-        this.evaluatedValue = value;
+
+    //get the compiled content
+    public Formula getFormula() {
+        return this.formula;
     }
-    // Get the evaluated value
-    public Double getEvaluatedValue() {
-        return this.evaluatedValue;
+
+    // Check whether the content is a formula (e.g. =A1+10)
+    public boolean isFormula() {
+        return this.content == null || this.content.startsWith("=");
     }
 
 
     // Returns the cell a string
     @Override
     public String toString() {
-        return content;
+        return getContent();
     }
 }
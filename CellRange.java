@@ -0,0 +1,35 @@
+import java.util.function.LongConsumer;
+
+// A rectangular range of cells in a formula (e.g. A1:B2)
+public record CellRange(CellReference start, CellReference end) {
+
+    // Visit the packed key of every cell in the range, column by column
+    public void forEachKey(LongConsumer action) {
+        int endColumn = CellStore.columnOf(end.getKey());
+        for (int col = CellStore.columnOf(start.getKey()); col <= endColumn; col++) {
+            for (int row = start.getRow(); row <= end.getRow(); row++) {
+                action.accept(CellStore.key(col, row));
+            }
+        }
+    }
+
+    // Number of cells in the range, empty ones included
+    public long size() {
+        long columns = CellStore.columnOf(end.getKey()) - CellStore.columnOf(start.getKey()) + 1;
+        long rows = end.getRow() - start.getRow() + 1L;
+        return columns <= 0 || rows <= 0 ? 0 : columns * rows;
+    }
+
+    // Check whether a packed key lies inside the range
+    public boolean contains(long key) {
+        int col = CellStore.columnOf(key);
+        int row = CellStore.rowOf(key);
+        return col >= CellStore.columnOf(start.getKey()) && col <= CellStore.columnOf(end.getKey())
+                && row >= start.getRow() && row <= end.getRow();
+    }
+
+    @Override
+    public String toString() {
+        return start + ":" + end;
+    }
+}
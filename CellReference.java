@@ -0,0 +1,93 @@
+// A reference to a single cell in a formula (e.g. A1)
+public final class CellReference {
+    private String column; // column letters, e.g. "A"; worked out on first use for references made from a key
+    private final int row; // row number, e.g. 1
+    private final long key; // packed (column index, row) key of the cell in the CellStore
+
+    public CellReference(String column, int row) {
+        this.column = column;
+        this.row = row;
+        this.key = CellStore.key(columnIndex(column), row);
+    }
+
+    private CellReference(long key) {
+        this.row = CellStore.rowOf(key);
+        this.key = key;
+    }
+
+    // Reference to the cell with a packed key
+    public static CellReference of(long key) {
+        return new CellReference(key);
+    }
+
+    // Parse a cell name like "A1" or "AB12"
+    public static CellReference parse(String name) {
+        int digits = 0;
+        while (digits < name.length() && name.charAt(digits) >= 'A' && name.charAt(digits) <= 'Z') {
+            digits++;
+        }
+        if (digits == 0 || digits == name.length() || !name.substring(digits).chars().allMatch(Character::isDigit)) {
+            throw new IllegalArgumentException("Invalid cell reference: " + name);
+        }
+        try {
+            return new CellReference(name.substring(0, digits), Integer.parseInt(name.substring(digits)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cell reference: " + name);
+        }
+    }
+
+    // Column letters (A to ZZZ) to a zero-based index: A -> 0, Z -> 25, AA -> 26
+    public static int columnIndex(String column) {
+        if (column == null || column.isEmpty() || column.length() > 3) {
+            throw new IllegalArgumentException("Invalid column: " + column);
+        }
+        int index = 0;
+        for (int i = 0; i < column.length(); i++) {
+            char c = column.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                throw new IllegalArgumentException("Invalid column: " + column);
+            }
+            index = index * 26 + (c - 'A' + 1);
+        }
+        return index - 1;
+    }
+
+    // Zero-based column index back to its letters: 0 -> A, 26 -> AA
+    public static String columnName(int index) {
+        StringBuilder name = new StringBuilder();
+        for (int i = index + 1; i > 0; i = (i - 1) / 26) {
+            name.append((char) ('A' + (i - 1) % 26));
+        }
+        return name.reverse().toString();
+    }
+
+    public String getColumn() {
+        if (column == null) {
+            column = columnName(CellStore.columnOf(key));
+        }
+        return column;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof CellReference reference && key == reference.key;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(key);
+    }
+
+    @Override
+    public String toString() {
+        return getColumn() + row;
+    }
+}
@@ -0,0 +1,790 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+// Storage behind a Spreadsheet: cells are keyed by packed (column index, row) longs and numeric
+// values live in primitive double[] blocks per column. Text and formulas are kept as Cell objects
+// in a side array of the block, so a plain number never needs an object of its own.
+// freeze() and fork() hand out a copy in O(1): blocks are shared and copied on write, so a
+// version only costs memory for the blocks changed after it was taken.
+// With paging enabled, only a bounded number of blocks keep their values and states in memory;
+// the others are written to pages of a memory-mapped scratch file and read back when used.
+public class CellStore {
+    static final int BLOCK_SIZE = 1024; // rows per block
+    private static final int BLOCK_SHIFT = 10;
+
+    // Cell state: the kind of content plus whether the value slot holds a current value
+    private static final byte EMPTY = 0;
+    private static final byte NUMBER = 1;
+    private static final byte TEXT = 2;
+    private static final byte FORMULA = 3;
+    private static final byte KIND_MASK = 3;
+    private static final byte VALID = 4;
+
+    private static final AtomicInteger VERSIONS = new AtomicInteger(); // source of copy-on-write versions
+    private static final Cleaner PAGE_CLEANER = Cleaner.create(); // frees the page of a block nobody uses any more
+
+    private static final int PAGE_BYTES_PER_ROW = Double.BYTES + 1; // a value and a state
+
+    private static final int MAX_INDEXED_ROW = (1 << 24) - 1; // rows past this are never answered by the index
+
+    private Block[][] columns = new Block[0][]; // column index -> blocks of rows
+    private int size; // number of non-empty cells
+    private AggregateIndex[] indexes; // optional per-column range aggregate index, null when disabled
+    private SpreadsheetSnapshot snapshot; // snapshot whose cells are decoded on first use, null once fully loaded
+    private BitSet[] loadedBlocks; // column index -> blocks already decoded from the snapshot
+
+    // Copy-on-write: a block or block array stamped with another version than the store is
+    // shared with a copy and has to be copied before it is changed
+    private int version;
+    private int columnsVersion; // version of the columns array itself
+    private int[] columnVersions = new int[0]; // column index -> version of its block array
+    private boolean frozen; // an immutable copy handed out by freeze()
+    private Pager pager; // decides which blocks stay in memory, null unless paging; shared with copies
+
+    // A fixed-size chunk of rows of one column
+    private static final class Block {
+        double[] values = new double[BLOCK_SIZE]; // number, or cached result of a formula; null while paged out
+        byte[] states = new byte[BLOCK_SIZE]; // null while paged out
+        Cell[] cells; // side structure for text and formulas, allocated on first use
+        String[] displays; // what getCellContent shows, formatted on first read and dropped on change
+        int count; // non-empty cells in the block
+        int version; // version of the store that created this block
+        int page = -1; // page holding the values and states while paged out, -1 before the first time
+        int slot = -1; // place in the pager's clock while in memory
+        boolean used; // used since the clock hand last passed
+        boolean dirty; // changed since last written to its page
+
+        Block copy(int version) {
+            Block copy = new Block();
+            System.arraycopy(values, 0, copy.values, 0, BLOCK_SIZE);
+            System.arraycopy(states, 0, copy.states, 0, BLOCK_SIZE);
+            copy.cells = cells == null ? null : cells.clone();
+            copy.displays = displays == null ? null : displays.clone();
+            copy.count = count;
+            copy.version = version;
+            return copy;
+        }
+    }
+
+    // Pack a column index and row into a single key
+    public static long key(int column, int row) {
+        if (column < 0 || row < 0) {
+            throw new IllegalArgumentException("Invalid cell reference: " + column + "," + row);
+        }
+        return ((long) column << 32) | row;
+    }
+
+    public static int columnOf(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int rowOf(long key) {
+        return (int) key;
+    }
+
+    // Name of a packed key, e.g. "A1"
+    public static String name(long key) {
+        return CellReference.columnName(columnOf(key)) + rowOf(key);
+    }
+
+    // Store a cell's content, replacing whatever was there
+    public void put(long key, Cell cell) {
+        Block block = writableBlock(key, true);
+        int index = rowOf(key) & (BLOCK_SIZE - 1);
+        if (block.states[index] == EMPTY) {
+            block.count++;
+            size++;
+        }
+        Double number = cell.isFormula() ? null : cell.getFormula().getConstantValue();
+        if (number != null) {
+            block.values[index] = number;
+            block.states[index] = NUMBER | VALID;
+            // Only keep the text when the number would not be shown the same way (e.g. "007")
+            setSideCell(block, index, render(number).equals(cell.getContent()) ? null : cell);
+        } else {
+            block.values[index] = 0;
+            block.states[index] = cell.isFormula() ? FORMULA : TEXT;
+            setSideCell(block, index, cell);
+        }
+        cellChanged(key, block, index);
+    }
+
+    // Store a plain number, e.g. one restored from a snapshot
+    public void putNumber(long key, double value) {
+        Block block = writableBlock(key, true);
+        int index = rowOf(key) & (BLOCK_SIZE - 1);
+        if (block.states[index] == EMPTY) {
+            block.count++;
+            size++;
+        }
+        block.values[index] = value;
+        block.states[index] = NUMBER | VALID;
+        setSideCell(block, index, null);
+        cellChanged(key, block, index);
+    }
+
+    // Empty a cell
+    public void remove(long key) {
+        if (isEmpty(key)) {
+            return;
+        }
+        Block block = writableBlock(key, false);
+        int index = rowOf(key) & (BLOCK_SIZE - 1);
+        block.states[index] = EMPTY;
+        block.values[index] = 0;
+        setSideCell(block, index, null);
+        cellChanged(key, block, index);
+        size--;
+        if (--block.count == 0) {
+            columns[columnOf(key)][rowOf(key) >>> BLOCK_SHIFT] = null;
+            if (pager != null) {
+                pager.release(block);
+            }
+        }
+    }
+
+    public boolean isEmpty(long key) {
+        return state(key) == EMPTY;
+    }
+
+    public boolean isFormula(long key) {
+        return (state(key) & KIND_MASK) == FORMULA;
+    }
+
+    // Whether the cell holds a current numeric value (numbers always do, formulas once calculated)
+    public boolean hasValue(long key) {
+        return (state(key) & VALID) != 0;
+    }
+
+    public double getValue(long key) {
+        Block block = block(key);
+        return block == null ? 0 : block.values[rowOf(key) & (BLOCK_SIZE - 1)];
+    }
+
+    // Cache the calculated value of a formula cell
+    public void setValue(long key, double value) {
+        Block block = writableBlock(key, false);
+        int index = rowOf(key) & (BLOCK_SIZE - 1);
+        if (block != null && (block.states[index] & KIND_MASK) == FORMULA) {
+            block.values[index] = value;
+            block.states[index] |= VALID;
+            cellChanged(key, block, index);
+        }
+    }
+
+    // Mark the cached value of a formula cell as stale
+    public void invalidate(long key) {
+        byte state = state(key);
+        if ((state & KIND_MASK) != FORMULA || (state & VALID) == 0) {
+            return; // nothing cached, so nothing to copy or change
+        }
+        Block block = writableBlock(key, false);
+        int index = rowOf(key) & (BLOCK_SIZE - 1);
+        block.states[index] &= ~VALID;
+        cellChanged(key, block, index);
+    }
+
+    // The text or formula object of a cell, or null for empty and plain numeric cells
+    public Cell getCell(long key) {
+        Block block = block(key);
+        return block == null || block.cells == null ? null : block.cells[rowOf(key) & (BLOCK_SIZE - 1)];
+    }
+
+    // The content of a cell as it was entered ("" for empty cells)
+    public String getContent(long key) {
+        Block block = block(key);
+        int index = rowOf(key) & (BLOCK_SIZE - 1);
+        if (block == null || block.states[index] == EMPTY) {
+            return "";
+        }
+        if (block.cells != null && block.cells[index] != null) {
+            return block.cells[index].getContent();
+        }
+        return render(block.values[index]);
+    }
+
+    // What getCellContent shows for a cell: "0" when it is empty, the current value of a formula
+    // as "%.1f", and the content otherwise. It is formatted on the first read and kept until
+    // the cell changes, so reading it again allocates nothing. Readers of a frozen copy may fill
+    // in the display of a block shared with other versions: it only depends on the block's own value.
+    public String getDisplay(long key) {
+        Block block = block(key);
+        int index = rowOf(key) & (BLOCK_SIZE - 1);
+        if (block == null || block.states[index] == EMPTY) {
+            return "0";
+        }
+        String[] displays = block.displays;
+        if (displays != null && displays[index] != null) {
+            return displays[index];
+        }
+        String display = block.states[index] == (FORMULA | VALID)
+                ? String.format("%.1f", block.values[index])
+                : getContent(key);
+        if (displays == null) {
+            displays = new String[BLOCK_SIZE];
+            block.displays = displays;
+        }
+        displays[index] = display;
+        return display;
+    }
+
+    // Back an empty store with a snapshot: a block of cells is decoded the first time it is used
+    public void attachSnapshot(SpreadsheetSnapshot snapshot) {
+        if (size > 0 || this.snapshot != null) {
+            throw new IllegalStateException("A snapshot can only be attached to an empty store");
+        }
+        this.snapshot = snapshot;
+        this.loadedBlocks = new BitSet[0];
+    }
+
+    // Decode every block of the attached snapshot that has not been used yet. Called before
+    // anything that walks all cells, and before other threads read the store.
+    public void materializeAll() {
+        if (snapshot != null) {
+            snapshot.loadAll(this);
+            snapshot = null;
+            loadedBlocks = null;
+        }
+    }
+
+    // An immutable copy of the cells as they are now, without the aggregate index. It shares all
+    // blocks with this store; from now on this store copies a block the first time it changes it.
+    public CellStore freeze() {
+        CellStore copy = copy();
+        copy.frozen = true;
+        return copy;
+    }
+
+    // A changeable copy of the cells as they are now, without the aggregate index. Like a frozen
+    // copy it shares all blocks, and each side copies a block the first time it changes it.
+    public CellStore fork() {
+        return copy();
+    }
+
+    private CellStore copy() {
+        materializeAll();
+        CellStore copy = new CellStore();
+        copy.columns = columns;
+        copy.columnsVersion = columnsVersion;
+        copy.columnVersions = columnVersions;
+        copy.size = size;
+        copy.pager = pager;
+        copy.version = nextVersion();
+        if (!frozen) {
+            version = nextVersion(); // this store no longer owns what it shares with the copy
+        }
+        return copy;
+    }
+
+    // Keep at most maxResidentBlocks blocks' values and states in memory and page the others out
+    // to a scratch file (deleted when the JVM exits). Text and formula objects stay on the heap.
+    // Copies taken from now on share the pager, so they must be used from the same thread.
+    public void enablePaging(Path pageFile, int maxResidentBlocks) throws IOException {
+        if (frozen) {
+            throw new IllegalStateException("Cannot change a frozen copy of the cells");
+        }
+        if (pager != null) {
+            throw new IllegalStateException("Paging is already enabled");
+        }
+        if (maxResidentBlocks < 1) {
+            throw new IllegalArgumentException("Invalid number of resident blocks: " + maxResidentBlocks);
+        }
+        pager = new Pager(new PageFile(pageFile, BLOCK_SIZE * PAGE_BYTES_PER_ROW), maxResidentBlocks);
+        // Copies taken before do not page, so the blocks shared with them stay as they are and
+        // this store pages copies of its blocks instead
+        version = nextVersion();
+        for (int col = 0; col < columns.length; col++) {
+            for (int b = 0; columns[col] != null && b < columns[col].length; b++) {
+                if (columns[col][b] != null) {
+                    writableBlock(key(col, b << BLOCK_SHIFT), false);
+                }
+            }
+        }
+    }
+
+    public boolean isPaging() {
+        return pager != null;
+    }
+
+    // Page cache counters, null unless paging is enabled
+    public PagingStatistics getPagingStatistics() {
+        return pager == null ? null : pager.statistics();
+    }
+
+    // A version no store has used yet, so a block stamped with another one is known to be shared
+    static int nextVersion() {
+        return VERSIONS.incrementAndGet();
+    }
+
+    // Visit every cell whose state, content or value differs between this store and another.
+    // Blocks the two share are skipped without a look, so comparing a copy with the store it was
+    // taken from costs as much as the blocks changed since.
+    public void forEachDifference(CellStore other, LongConsumer action) {
+        materializeAll();
+        other.materializeAll();
+        for (int col = 0; col < Math.max(columns.length, other.columns.length); col++) {
+            Block[] blocks = col < columns.length ? columns[col] : null;
+            Block[] otherBlocks = col < other.columns.length ? other.columns[col] : null;
+            if (blocks == otherBlocks) continue;
+            int blockCount = Math.max(blocks == null ? 0 : blocks.length, otherBlocks == null ? 0 : otherBlocks.length);
+            for (int b = 0; b < blockCount; b++) {
+                Block block = blocks != null && b < blocks.length ? blocks[b] : null;
+                Block otherBlock = otherBlocks != null && b < otherBlocks.length ? otherBlocks[b] : null;
+                if (block == otherBlock) continue;
+                // The arrays are taken one block at a time: paging in one may page out the other
+                byte[] states = block == null ? null : resident(block).states;
+                double[] values = block == null ? null : block.values;
+                byte[] otherStates = otherBlock == null ? null : resident(otherBlock).states;
+                double[] otherValues = otherBlock == null ? null : otherBlock.values;
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    byte state = states == null ? EMPTY : states[i];
+                    byte otherState = otherStates == null ? EMPTY : otherStates[i];
+                    if (state != otherState || state != EMPTY && (sideCell(block, i) != sideCell(otherBlock, i)
+                            || Double.compare(values[i], otherValues[i]) != 0)) {
+                        action.accept(key(col, (b << BLOCK_SHIFT) | i));
+                    }
+                }
+            }
+        }
+    }
+
+    private static Cell sideCell(Block block, int index) {
+        return block.cells == null ? null : block.cells[index];
+    }
+
+    // Decode one block from the attached snapshot unless that already happened
+    void ensureLoaded(int col, int blockIndex) {
+        if (col >= loadedBlocks.length) {
+            loadedBlocks = Arrays.copyOf(loadedBlocks, Math.max(col + 1, loadedBlocks.length * 2));
+        }
+        if (loadedBlocks[col] == null) {
+            loadedBlocks[col] = new BitSet();
+        }
+        if (!loadedBlocks[col].get(blockIndex)) {
+            loadedBlocks[col].set(blockIndex); // before decoding, which stores cells through block()
+            snapshot.loadBlock(col, blockIndex, this);
+        }
+    }
+
+    // Visit every non-empty cell, column by column
+    public void forEachKey(LongConsumer action) {
+        materializeAll();
+        for (int col = 0; col < columns.length; col++) {
+            Block[] blocks = columns[col];
+            if (blocks == null) continue;
+            for (int b = 0; b < blocks.length; b++) {
+                if (blocks[b] == null) continue;
+                byte[] states = resident(blocks[b]).states; // kept in case the action pages the block out
+                for (int i = 0; i < BLOCK_SIZE; i++) {
+                    if (states[i] != EMPTY) {
+                        action.accept(key(col, (b << BLOCK_SHIFT) | i));
+                    }
+                }
+            }
+        }
+    }
+
+    // Visit the non-empty cells of a range, column by column, skipping blocks without cells,
+    // so the cost follows the number of occupied cells rather than the area of the range.
+    // Returns the number of cells visited.
+    public long forEachKey(CellRange range, LongConsumer action) {
+        materializeAll();
+        int fromRow = range.start().getRow();
+        int toRow = range.end().getRow();
+        int toColumn = Math.min(columnOf(range.end().getKey()), columns.length - 1);
+        long visited = 0;
+        for (int col = columnOf(range.start().getKey()); col <= toColumn && fromRow <= toRow; col++) {
+            Block[] blocks = columns[col];
+            if (blocks == null) continue;
+            int lastBlock = Math.min(toRow >>> BLOCK_SHIFT, blocks.length - 1);
+            for (int b = fromRow >>> BLOCK_SHIFT; b <= lastBlock; b++) {
+                if (blocks[b] == null) continue;
+                byte[] states = resident(blocks[b]).states;
+                int first = Math.max(fromRow, b << BLOCK_SHIFT) & (BLOCK_SIZE - 1);
+                int last = (int) Math.min(toRow, ((long) b << BLOCK_SHIFT) + BLOCK_SIZE - 1) & (BLOCK_SIZE - 1);
+                for (int i = first; i <= last; i++) {
+                    if (states[i] != EMPTY) {
+                        action.accept(key(col, (b << BLOCK_SHIFT) | i));
+                        visited++;
+                    }
+                }
+            }
+        }
+        return visited;
+    }
+
+    // Add a range to an aggregate straight from the value arrays: runs of cells with a current
+    // value (numbers, recalculated formulas, and empty cells, which hold 0) are reduced in bulk by
+    // ColumnAggregates, and the other occupied cells (text, formulas waiting for a value) are
+    // passed to the action. Returns the number of cells covered either way; the empty blocks and
+    // columns are left to the caller.
+    public long aggregateValues(CellRange range, Aggregate aggregate, LongConsumer action) {
+        materializeAll();
+        int fromRow = range.start().getRow();
+        int toRow = range.end().getRow();
+        int toColumn = Math.min(columnOf(range.end().getKey()), columns.length - 1);
+        long covered = 0;
+        for (int col = columnOf(range.start().getKey()); col <= toColumn && fromRow <= toRow; col++) {
+            Block[] blocks = columns[col];
+            if (blocks == null) continue;
+            int lastBlock = Math.min(toRow >>> BLOCK_SHIFT, blocks.length - 1);
+            for (int b = fromRow >>> BLOCK_SHIFT; b <= lastBlock; b++) {
+                if (blocks[b] == null) continue;
+                Block block = resident(blocks[b]);
+                byte[] states = block.states; // kept in case the action pages the block out
+                double[] values = block.values;
+                int first = Math.max(fromRow, b << BLOCK_SHIFT) & (BLOCK_SIZE - 1);
+                int last = (int) Math.min(toRow, ((long) b << BLOCK_SHIFT) + BLOCK_SIZE - 1) & (BLOCK_SIZE - 1);
+                int runStart = first;
+                for (int i = first; i <= last; i++) {
+                    byte state = states[i];
+                    if (state != EMPTY && (state & VALID) == 0) {
+                        if (runStart < i) {
+                            ColumnAggregates.reduce(values, runStart, i, aggregate);
+                        }
+                        action.accept(key(col, (b << BLOCK_SHIFT) | i));
+                        runStart = i + 1;
+                    }
+                }
+                if (runStart <= last) {
+                    ColumnAggregates.reduce(values, runStart, last + 1, aggregate);
+                }
+                covered += last - first + 1;
+            }
+        }
+        return covered;
+    }
+
+    public int size() {
+        materializeAll();
+        return size;
+    }
+
+    // Index of the last column with a non-empty cell, -1 when there is none
+    public int getLastColumn() {
+        materializeAll();
+        for (int col = columns.length - 1; col >= 0; col--) {
+            if (columns[col] != null && Arrays.stream(columns[col]).anyMatch(block -> block != null)) {
+                return col;
+            }
+        }
+        return -1;
+    }
+
+    // The last row with a non-empty cell in any column, -1 when there is none
+    public int getLastRow() {
+        materializeAll();
+        int lastRow = -1;
+        for (Block[] blocks : columns) {
+            for (int b = blocks == null ? -1 : blocks.length - 1; b >= 0; b--) {
+                if (blocks[b] != null) {
+                    byte[] states = resident(blocks[b]).states;
+                    int i = BLOCK_SIZE - 1;
+                    while (states[i] == EMPTY) {
+                        i--; // a block is dropped with its last cell, so this one has a cell
+                    }
+                    lastRow = Math.max(lastRow, (b << BLOCK_SHIFT) | i);
+                    break;
+                }
+            }
+        }
+        return lastRow;
+    }
+
+    // Turn the per-column range aggregate index on (built from the current cells) or off
+    public void setAggregateIndexEnabled(boolean enabled) {
+        if (!enabled) {
+            indexes = null;
+            return;
+        }
+        if (indexes != null) {
+            return;
+        }
+        materializeAll();
+        indexes = new AggregateIndex[columns.length];
+        forEachKey(key -> updateIndex(key, block(key), rowOf(key) & (BLOCK_SIZE - 1)));
+    }
+
+    public boolean isAggregateIndexEnabled() {
+        return indexes != null;
+    }
+
+    // Add a whole range to an aggregate using the index, with empty cells counting as 0.
+    // Returns false if there is no index or a cell in the range has no current value,
+    // in which case the caller has to visit the cells one by one.
+    public boolean aggregate(CellRange range, Aggregate aggregate) {
+        int fromRow = range.start().getRow();
+        int toRow = range.end().getRow();
+        int fromColumn = columnOf(range.start().getKey());
+        int toColumn = columnOf(range.end().getKey());
+        if (indexes == null || toRow > MAX_INDEXED_ROW) {
+            return false;
+        }
+        if (fromRow > toRow || fromColumn > toColumn) {
+            return true; // no cells at all
+        }
+        Aggregate columnsTotal = new Aggregate();
+        for (int col = fromColumn; col <= toColumn; col++) {
+            AggregateIndex index = col < indexes.length ? indexes[col] : null;
+            if (index == null) {
+                columnsTotal.addAll(0, 0, 0, toRow - fromRow + 1); // column without cells
+            } else if (!index.query(fromRow, toRow, columnsTotal)) {
+                return false;
+            }
+        }
+        aggregate.addAll(columnsTotal.getSum(), columnsTotal.getMin(), columnsTotal.getMax(), columnsTotal.getCount());
+        return true;
+    }
+
+    // Text of a plain number the way it is normally typed: 42 rather than 42.0
+    static String render(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15 && !(value == 0 && 1 / value < 0)) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+
+    private byte state(long key) {
+        Block block = block(key);
+        return block == null ? EMPTY : block.states[rowOf(key) & (BLOCK_SIZE - 1)];
+    }
+
+    // A cell's state or value just changed: its display is formatted again when next read,
+    // and the aggregate index is updated
+    private void cellChanged(long key, Block block, int index) {
+        if (block.displays != null) {
+            block.displays[index] = null;
+        }
+        updateIndex(key, block, index);
+    }
+
+    // Keep the aggregate index in line with a cell whose state or value just changed
+    private void updateIndex(long key, Block block, int index) {
+        if (indexes == null || rowOf(key) > MAX_INDEXED_ROW) {
+            return;
+        }
+        int col = columnOf(key);
+        if (col >= indexes.length) {
+            indexes = Arrays.copyOf(indexes, Math.max(col + 1, columns.length));
+        }
+        if (indexes[col] == null) {
+            indexes[col] = new AggregateIndex();
+        }
+        byte state = block.states[index];
+        boolean stale = state != EMPTY && (state & VALID) == 0;
+        indexes[col].update(rowOf(key), block.values[index], stale);
+    }
+
+    private static void setSideCell(Block block, int index, Cell cell) {
+        if (cell != null && block.cells == null) {
+            block.cells = new Cell[BLOCK_SIZE];
+        }
+        if (block.cells != null) {
+            block.cells[index] = cell;
+        }
+    }
+
+    // Find the block holding a key (null if there is none), for reading
+    private Block block(long key) {
+        int col = columnOf(key);
+        int blockIndex = rowOf(key) >>> BLOCK_SHIFT;
+        if (snapshot != null) {
+            ensureLoaded(col, blockIndex);
+        }
+        if (col >= columns.length) {
+            return null;
+        }
+        Block[] blocks = columns[col];
+        Block block = blocks == null || blockIndex >= blocks.length ? null : blocks[blockIndex];
+        return block == null ? null : resident(block);
+    }
+
+    // A block with its values and states in memory
+    private Block resident(Block block) {
+        return pager == null ? block : pager.resident(block);
+    }
+
+    // Find the block holding a key for changing it, creating the column and block when asked to.
+    // Whatever is still shared with a frozen copy on the way to the block is copied first.
+    private Block writableBlock(long key, boolean create) {
+        if (frozen) {
+            throw new IllegalStateException("Cannot change a frozen copy of the cells");
+        }
+        int col = columnOf(key);
+        int blockIndex = rowOf(key) >>> BLOCK_SHIFT;
+        if (snapshot != null) {
+            ensureLoaded(col, blockIndex);
+        }
+        if (col >= columns.length) {
+            if (!create) return null;
+            columns = Arrays.copyOf(columns, Math.max(col + 1, columns.length * 2));
+            columnVersions = Arrays.copyOf(columnVersions, columns.length);
+            columnsVersion = version;
+        } else if (columnsVersion != version) {
+            columns = columns.clone();
+            columnVersions = columnVersions.clone();
+            columnsVersion = version;
+        }
+        Block[] blocks = columns[col];
+        if (blocks == null || blockIndex >= blocks.length) {
+            if (!create) return null;
+            blocks = blocks == null ? new Block[blockIndex + 1] : Arrays.copyOf(blocks, Math.max(blockIndex + 1, blocks.length * 2));
+            columns[col] = blocks;
+            columnVersions[col] = version;
+        } else if (columnVersions[col] != version) {
+            blocks = blocks.clone();
+            columns[col] = blocks;
+            columnVersions[col] = version;
+        }
+        Block block = blocks[blockIndex];
+        if (block == null) {
+            if (!create) return null;
+            block = new Block();
+            block.version = version;
+            blocks[blockIndex] = block;
+            if (pager != null) {
+                pager.add(block);
+            }
+        } else if (block.version != version) {
+            block = resident(block).copy(version);
+            blocks[blockIndex] = block;
+            if (pager != null) {
+                pager.add(block);
+            }
+        } else {
+            resident(block).dirty = true;
+        }
+        return block;
+    }
+
+    // Counters of the page cache: hits and misses count block lookups, pageWrites the blocks
+    // written out on eviction (a block is only written again after it changed)
+    public record PagingStatistics(long hits, long misses, long evictions, long pageWrites,
+                                   int residentBlocks, int pagesInUse) {
+        public double hitRate() {
+            return hits + misses == 0 ? 1 : (double) hits / (hits + misses);
+        }
+    }
+
+    // Keeps the values and states of a bounded number of blocks in memory and the others in a
+    // page file. Resident blocks sit on a clock: the hand passes over blocks used since it last
+    // came by, clearing their mark, and evicts the first one that was not, so the blocks evicted
+    // are ones that have not been used for a while (an approximation of least recently used).
+    // A block's page is freed once the block is garbage, i.e. no version of the store has it.
+    private static final class Pager {
+        private final PageFile file;
+        private final Block[] clock;
+        private final int[] freeSlots;
+        private int freeCount;
+        private int hand;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long pageWrites;
+
+        Pager(PageFile file, int capacity) {
+            this.file = file;
+            clock = new Block[capacity];
+            freeSlots = new int[capacity];
+            for (int slot = 0; slot < capacity; slot++) {
+                freeSlots[freeCount++] = capacity - 1 - slot;
+            }
+        }
+
+        // The block with its values and states in memory, read back from its page if needed
+        Block resident(Block block) {
+            if (block.values != null) {
+                hits++;
+                block.used = true;
+                return block;
+            }
+            misses++;
+            place(block); // before the block has arrays, so it cannot be its own victim
+            double[] values = new double[BLOCK_SIZE];
+            byte[] states = new byte[BLOCK_SIZE];
+            ByteBuffer page = file.page(block.page).order(ByteOrder.nativeOrder());
+            page.asDoubleBuffer().get(values);
+            page.get(BLOCK_SIZE * Double.BYTES, states);
+            block.values = values;
+            block.states = states;
+            block.dirty = false;
+            return block;
+        }
+
+        // A block just created in memory
+        void add(Block block) {
+            place(block);
+            block.dirty = true;
+        }
+
+        // A block dropped from the store with its last cell: it no longer takes a slot. Copies
+        // sharing it keep it in memory; its page is freed when they are gone.
+        void release(Block block) {
+            if (block.slot >= 0) {
+                clock[block.slot] = null;
+                freeSlots[freeCount++] = block.slot;
+                block.slot = -1;
+            }
+        }
+
+        PagingStatistics statistics() {
+            return new PagingStatistics(hits, misses, evictions, pageWrites, clock.length - freeCount, file.getPagesInUse());
+        }
+
+        private void place(Block block) {
+            int slot = freeCount > 0 ? freeSlots[--freeCount] : evict();
+            clock[slot] = block;
+            block.slot = slot;
+            block.used = true;
+        }
+
+        // Page out the first block the hand finds unused and return its slot
+        private int evict() {
+            while (true) {
+                Block block = clock[hand];
+                int slot = hand;
+                hand = (hand + 1) % clock.length;
+                if (block.used) {
+                    block.used = false;
+                    continue;
+                }
+                if (block.dirty || block.page < 0) {
+                    write(block);
+                }
+                block.values = null;
+                block.states = null;
+                block.displays = null;
+                block.slot = -1;
+                clock[slot] = null;
+                evictions++;
+                return slot;
+            }
+        }
+
+        private void write(Block block) {
+            if (block.page < 0) {
+                try {
+                    block.page = file.allocate();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                PageFile file = this.file;
+                int page = block.page;
+                PAGE_CLEANER.register(block, () -> file.free(page));
+            }
+            ByteBuffer page = file.page(block.page).order(ByteOrder.nativeOrder());
+            page.asDoubleBuffer().put(block.values);
+            page.put(BLOCK_SIZE * Double.BYTES, block.states);
+            block.dirty = false;
+            pageWrites++;
+        }
+    }
+}
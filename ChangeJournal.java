@@ -0,0 +1,189 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead journal of cell edits. Every edit becomes one small record
+// (length, packed key, content, CRC32); records are buffered and forced to disk in batches,
+// so the cost of saving depends on the number of edits and not on the size of the sheet.
+// A record waits at most SYNC_INTERVAL_NANOS for its fsync: when no batch fills up in time,
+// a background thread forces the journal, so edits made before an idle period are not left
+// unsynced until the next call.
+// A torn record at the end of the file (e.g. after a crash) ends the journal.
+public final class ChangeJournal implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16; // bytes collected before they are written out
+    private static final int SYNC_BATCH_RECORDS = 256; // records allowed to wait for an fsync
+    private static final long SYNC_INTERVAL_NANOS = 100_000_000L; // longest an edit may wait for an fsync
+    private static final ScheduledExecutorService SYNCER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "journal-sync");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int HEADER_SIZE = 4 + 8; // length of the content, packed key
+    private static final int CRC_SIZE = 4;
+
+    private final Path path;
+    private final FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private int unsyncedRecords;
+    private ScheduledFuture<?> scheduledSync; // forces the records waiting for an fsync, null when none wait
+    private IOException syncFailure; // a background sync that failed, thrown by the next call
+
+    // Receives the edits stored in a journal, oldest first
+    public interface Replay {
+        void apply(long key, String content);
+    }
+
+    private ChangeJournal(Path path, FileChannel channel) {
+        this.path = path;
+        this.channel = channel;
+    }
+
+    // Open a journal for appending, creating it if needed. A torn record at the end is cut off
+    // so that new records directly follow the last complete one.
+    public static ChangeJournal open(String filename) throws IOException {
+        Path path = Path.of(filename);
+        long end = replay(path, (key, content) -> { });
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() > end) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+        channel.position(end);
+        return new ChangeJournal(path, channel);
+    }
+
+    // Pass every complete record of a journal file to a replay; returns the length of the
+    // complete records (0 when the file does not exist)
+    public static long replay(Path path, Replay replay) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long end = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE))) {
+            while (true) {
+                int length;
+                long key;
+                byte[] content;
+                int crc;
+                try {
+                    length = in.readInt();
+                    if (length < 0) {
+                        break;
+                    }
+                    key = in.readLong();
+                    content = in.readNBytes(length);
+                    if (content.length < length) {
+                        break;
+                    }
+                    crc = in.readInt();
+                } catch (EOFException e) {
+                    break; // torn record
+                }
+                if (crc != checksum(key, content)) {
+                    break;
+                }
+                replay.apply(key, new String(content, StandardCharsets.UTF_8));
+                end += HEADER_SIZE + length + CRC_SIZE;
+            }
+        }
+        return end;
+    }
+
+    // Append an edit. It reaches the disk with the next batch: after SYNC_BATCH_RECORDS
+    // records, SYNC_INTERVAL_NANOS after the first record of the batch, or on sync().
+    public synchronized void append(long key, String content) throws IOException {
+        throwSyncFailure();
+        byte[] bytes = (content == null ? "" : content).getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + bytes.length + CRC_SIZE;
+        if (buffer.remaining() < size) {
+            write();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+        }
+        buffer.putInt(bytes.length);
+        buffer.putLong(key);
+        buffer.put(bytes);
+        buffer.putInt(checksum(key, bytes));
+        if (++unsyncedRecords >= SYNC_BATCH_RECORDS) {
+            sync();
+        } else if (scheduledSync == null) {
+            scheduledSync = SYNCER.schedule(this::syncInBackground, SYNC_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Write the buffered records and force them to disk
+    public synchronized void sync() throws IOException {
+        throwSyncFailure();
+        if (scheduledSync != null) {
+            scheduledSync.cancel(false);
+            scheduledSync = null;
+        }
+        write();
+        if (unsyncedRecords > 0) {
+            channel.force(false);
+            unsyncedRecords = 0;
+        }
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    // Length of the journal on disk, including records not yet forced
+    public synchronized long size() throws IOException {
+        return channel.position() + buffer.position();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Runs on the syncer thread once the oldest unsynced record has waited SYNC_INTERVAL_NANOS
+    private synchronized void syncInBackground() {
+        scheduledSync = null;
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException e) {
+            syncFailure = e;
+        }
+    }
+
+    private void throwSyncFailure() throws IOException {
+        IOException failure = syncFailure;
+        if (failure != null) {
+            syncFailure = null;
+            throw failure;
+        }
+    }
+
+    private void write() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int checksum(long key, byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putLong(0, key));
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,34 @@
+// Sum, min and max of a run of values in a primitive column array: the inner loop of a function
+// over a numeric range. It uses the Vector API when the jdk.incubator.vector module is present
+// (java --add-modules jdk.incubator.vector) and a scalar loop otherwise; running with
+// -Dspreadsheet.scalarAggregates=true forces the scalar loop, e.g. to compare the two.
+public final class ColumnAggregates {
+    static final boolean VECTORIZED = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()
+            && !Boolean.getBoolean("spreadsheet.scalarAggregates");
+
+    private ColumnAggregates() {
+    }
+
+    // Add values[from] to values[to - 1] to an aggregate
+    public static void reduce(double[] values, int from, int to, Aggregate aggregate) {
+        if (VECTORIZED) {
+            VectorAggregates.reduce(values, from, to, aggregate);
+        } else {
+            reduceScalar(values, from, to, aggregate);
+        }
+    }
+
+    // The same one value at a time, for machines and JVMs without the Vector API
+    public static void reduceScalar(double[] values, int from, int to, Aggregate aggregate) {
+        double sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = from; i < to; i++) {
+            double value = values[i];
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        aggregate.addAll(sum, min, max, to - from);
+    }
+}
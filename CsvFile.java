@@ -0,0 +1,276 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// CSV files (RFC 4180: comma separated, fields with commas, quotes or line breaks in double
+// quotes, "" for a quote) mapped onto a grid of cells: a line per row, a field per column.
+//
+// Reading memory-maps the file and cuts it into chunks at line breaks, which are parsed in
+// parallel. Canonical numbers (e.g. 42, -3.25) are parsed straight from the bytes to doubles;
+// everything else is kept as text and stored like typed content. Chunks are handed on in file
+// order. A chunk is cut on a line break inside a quoted field only if the cut is unlucky: the
+// chunk then ends in an open quote, and the rest of the file is parsed again in one piece.
+//
+// Writing streams the cells row by row: numbers and formula results as values, text as entered.
+public final class CsvFile {
+    private static final int CHUNK_SIZE = 4 << 20; // bytes parsed by one task, roughly
+    private static final int MAX_CHUNKS_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors() + 1;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    static final String ERROR_FIELD = "#ERROR"; // written for a formula without a value, read back as text
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    private CsvFile() {
+    }
+
+    // The fields of a run of lines. Rows count from the first line of the run.
+    static final class Rows {
+        int rowCount;
+        int size; // fields
+        long[] positions = new long[1024]; // CellStore.key(column, row) per field
+        double[] numbers = new double[1024]; // value of a field read as a plain number
+        String[] texts = new String[1024]; // other fields as written ("" when empty), null for numbers
+        boolean unterminated; // ended inside a quoted field
+
+        private void add(int column, int row, double number, String text) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+                numbers = Arrays.copyOf(numbers, size * 2);
+                texts = Arrays.copyOf(texts, size * 2);
+            }
+            positions[size] = CellStore.key(column, row);
+            numbers[size] = number;
+            texts[size++] = text;
+        }
+    }
+
+    // Takes the rows of the file in order; firstRow is the line number of the first one, from 0
+    interface RowsConsumer {
+        void accept(Rows rows, int firstRow);
+    }
+
+    // Parse a file and pass its rows on chunk by chunk; returns the number of lines
+    static int read(String filename, RowsConsumer sink) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("CSV file too large to map: " + filename);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int length = buffer.limit();
+        List<Integer> starts = new ArrayList<>();
+        for (int start = 0; start < length; start = nextLine(buffer, (int) Math.min((long) start + CHUNK_SIZE, length))) {
+            starts.add(start);
+        }
+        starts.add(length);
+
+        Deque<Future<Rows>> parsing = new ArrayDeque<>();
+        int submitted = 0;
+        int row = 0;
+        try {
+            for (int chunk = 0; chunk < starts.size() - 1; chunk++) {
+                for (; submitted < starts.size() - 1 && parsing.size() < MAX_CHUNKS_IN_FLIGHT; submitted++) {
+                    int from = starts.get(submitted);
+                    int to = starts.get(submitted + 1);
+                    parsing.add(ForkJoinPool.commonPool().submit(() -> parse(buffer, from, to)));
+                }
+                Rows rows = parsing.poll().get();
+                if (rows.unterminated && chunk < starts.size() - 2) {
+                    // A chunk was cut inside a quoted field: parse the rest as one chunk instead
+                    rows = parse(buffer, starts.get(chunk), length);
+                    sink.accept(rows, row);
+                    return row + rows.rowCount;
+                }
+                sink.accept(rows, row);
+                row += rows.rowCount;
+            }
+            return row;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + filename);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not parse " + filename, e.getCause());
+        } finally {
+            parsing.forEach(future -> future.cancel(true));
+        }
+    }
+
+    // Where the line after a position starts (the end of the buffer if there is none)
+    private static int nextLine(MappedByteBuffer buffer, int position) {
+        int length = buffer.limit();
+        while (position < length && buffer.get(position - 1) != '\n') {
+            position++;
+        }
+        return Math.min(position, length);
+    }
+
+    // Parse whole lines from..to (exclusive)
+    private static Rows parse(MappedByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        buffer.get(from, bytes);
+        Rows rows = new Rows();
+        int i = 0;
+        int row = 0;
+        while (i < bytes.length) {
+            for (int column = 0; ; column++) {
+                if (i < bytes.length && bytes[i] == '"') {
+                    // Quoted field: up to the closing quote, with "" standing for a quote
+                    int start = ++i;
+                    int close = -1;
+                    boolean escapes = false;
+                    while (i < bytes.length) {
+                        if (bytes[i] == '"') {
+                            if (i + 1 < bytes.length && bytes[i + 1] == '"') {
+                                escapes = true;
+                                i += 2;
+                                continue;
+                            }
+                            close = i;
+                            break;
+                        }
+                        i++;
+                    }
+                    rows.unterminated |= close < 0;
+                    String text = new String(bytes, start, (close < 0 ? bytes.length : close) - start, StandardCharsets.UTF_8);
+                    rows.add(column, row, 0, escapes ? text.replace("\"\"", "\"") : text);
+                    i = close < 0 ? bytes.length : close + 1;
+                    while (i < bytes.length && bytes[i] != ',' && bytes[i] != '\n') {
+                        i++; // after the closing quote: anything up to the separator is dropped
+                    }
+                } else {
+                    int start = i;
+                    while (i < bytes.length && bytes[i] != ',' && bytes[i] != '\n') {
+                        i++;
+                    }
+                    int end = i > start && bytes[i - 1] == '\r' ? i - 1 : i;
+                    double number = parseNumber(bytes, start, end);
+                    if (Double.isNaN(number)) {
+                        rows.add(column, row, 0, new String(bytes, start, end - start, StandardCharsets.UTF_8));
+                    } else {
+                        rows.add(column, row, number, null);
+                    }
+                }
+                if (i < bytes.length && bytes[i] == ',') {
+                    i++;
+                    continue;
+                }
+                break;
+            }
+            i++; // the line break
+            row++;
+        }
+        rows.rowCount = row;
+        return rows;
+    }
+
+    // A number written the way the sheet shows it (e.g. 42, -3.25, 0.5), which can be stored as a
+    // plain number without keeping its text; NaN for anything else, which is stored as typed.
+    // Up to 15 digits and powers of ten up to 1e15 are exact, so the one division is rounded
+    // exactly like Double.parseDouble.
+    static double parseNumber(byte[] bytes, int start, int end) {
+        int i = start;
+        boolean negative = i < end && bytes[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int integerStart = i;
+        long mantissa = 0;
+        while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+            mantissa = mantissa * 10 + (bytes[i++] - '0');
+        }
+        int integerDigits = i - integerStart;
+        if (integerDigits == 0 || integerDigits > 1 && bytes[integerStart] == '0') {
+            return Double.NaN;
+        }
+        if (i == end) {
+            if (integerDigits > 15 || negative && mantissa == 0) {
+                return Double.NaN; // too long to be exact, or -0
+            }
+            return negative ? -mantissa : mantissa;
+        }
+        if (bytes[i++] != '.' || integerDigits > 7) {
+            return Double.NaN; // 1e7 and up are shown in scientific notation
+        }
+        int fractionStart = i;
+        while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+            mantissa = mantissa * 10 + (bytes[i++] - '0');
+        }
+        int fractionDigits = i - fractionStart;
+        if (i != end || fractionDigits == 0 || bytes[end - 1] == '0' || integerDigits + fractionDigits > 15) {
+            return Double.NaN;
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        if (value < 1e-3) {
+            return Double.NaN; // shown in scientific notation
+        }
+        return negative ? -value : value;
+    }
+
+    // Write the cells of a store from A1 to the last column and row in use. A formula that fails
+    // is written as ERROR_FIELD, so importing the file again gives back values, never formulas.
+    static void write(CellStore store, String filename) throws IOException {
+        int lastColumn = store.getLastColumn();
+        int lastRow = store.getLastRow();
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(Path.of(filename)), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE)) {
+            char[] digits = new char[20];
+            for (int row = 1; row <= lastRow; row++) {
+                for (int column = 0; column <= lastColumn; column++) {
+                    if (column > 0) {
+                        out.write(',');
+                    }
+                    long key = CellStore.key(column, row);
+                    if (store.isEmpty(key)) {
+                        continue;
+                    }
+                    Cell cell = store.getCell(key);
+                    if (store.hasValue(key) && (cell == null || cell.isFormula())) {
+                        writeNumber(store.getValue(key), out, digits);
+                    } else if (cell != null && cell.isFormula()) {
+                        out.write(ERROR_FIELD);
+                    } else {
+                        writeText(store.getContent(key), out);
+                    }
+                }
+                out.write('\n');
+            }
+        }
+    }
+
+    // A number as the sheet shows it; integers are written without making a string
+    private static void writeNumber(double value, Writer out, char[] digits) throws IOException {
+        if (value != Math.rint(value) || Math.abs(value) >= 1e15 || value == 0 && 1 / value < 0) {
+            out.write(CellStore.render(value));
+            return;
+        }
+        long number = (long) value;
+        int position = digits.length;
+        long rest = Math.abs(number);
+        do {
+            digits[--position] = (char) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest > 0);
+        if (number < 0) {
+            digits[--position] = '-';
+        }
+        out.write(digits, position, digits.length - position);
+    }
+
+    private static void writeText(String text, Writer out) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < text.length() && !quote; i++) {
+            char c = text.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(text);
+            return;
+        }
+        out.write('"');
+        out.write(text.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
@@ -0,0 +1,249 @@
+import java.util.*;
+import java.util.function.BiConsumer;
+
+// The dependency graph behind a Spreadsheet: for every cell, the cells whose formulas read it.
+// A formula reading a large range keeps the range instead of an edge per cell of it; those
+// ranges are also indexed by the columns they cover, so a lookup only checks the ranges that
+// can hold the cell.
+// Edges are kept per column in chunks of rows, like the cells of a CellStore. fork() hands out
+// a copy in O(1): both copies share every chunk, and each copies a chunk (and a set of
+// dependents) the first time it changes it, so a version only costs what its edits touched.
+public class DependencyGraph {
+    private static final int CHUNK_SIZE = CellStore.BLOCK_SIZE; // rows per chunk
+    private static final int CHUNK_SHIFT = 10;
+
+    private Chunk[][] columns = new Chunk[0][]; // column index -> chunks of rows
+    private Map<Long, List<CellRange>> ranges = new HashMap<>(); // cell -> large ranges its formula reads
+    private Map<Integer, List<RangeDependency>> rangesByColumn = new HashMap<>(); // column -> large ranges covering it
+    private boolean rangesShared; // ranges and rangesByColumn are shared with a fork and are copied before they change
+    private long edgeCount;
+
+    // Copy-on-write, as in CellStore: anything stamped with another version is shared
+    private int version = CellStore.nextVersion();
+    private int columnsVersion = version;
+    private int[] columnVersions = new int[0];
+
+    // A large range read by the formula of a cell
+    private record RangeDependency(long dependent, CellRange range) {
+    }
+
+    // The dependents of a fixed-size chunk of rows of one column
+    private static final class Chunk {
+        final Set<Long>[] dependents = newSets(); // row -> cells reading it, null when none
+        final long[] owned = new long[CHUNK_SIZE / 64]; // sets made by this chunk, the others are shared
+        int count; // rows with dependents
+        int version;
+
+        Chunk copy(int version) {
+            Chunk copy = new Chunk();
+            System.arraycopy(dependents, 0, copy.dependents, 0, CHUNK_SIZE);
+            copy.count = count;
+            copy.version = version;
+            return copy;
+        }
+
+        // The set of dependents of a row, copied first if it is still shared with another version
+        Set<Long> writableSet(int index) {
+            Set<Long> set = dependents[index];
+            if ((owned[index >>> 6] & (1L << index)) == 0) {
+                set = set == null ? new HashSet<>() : new HashSet<>(set);
+                dependents[index] = set;
+                owned[index >>> 6] |= 1L << index;
+            }
+            return set;
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private static Set<Long>[] newSets() {
+            return new Set[CHUNK_SIZE];
+        }
+    }
+
+    // A copy of the graph as it is now, sharing everything with this one until either changes
+    public DependencyGraph fork() {
+        DependencyGraph copy = new DependencyGraph();
+        copy.columns = columns;
+        copy.columnsVersion = columnsVersion;
+        copy.columnVersions = columnVersions;
+        copy.ranges = ranges;
+        copy.rangesByColumn = rangesByColumn;
+        copy.rangesShared = true;
+        copy.edgeCount = edgeCount;
+        rangesShared = true;
+        version = CellStore.nextVersion();
+        return copy;
+    }
+
+    // Record that a cell reads another one
+    public void add(long dependent, long dependency) {
+        Chunk chunk = writableChunk(dependency, true);
+        int index = CellStore.rowOf(dependency) & (CHUNK_SIZE - 1);
+        if (chunk.dependents[index] == null) {
+            chunk.count++;
+        }
+        if (chunk.writableSet(index).add(dependent)) {
+            edgeCount++;
+        }
+    }
+
+    public void remove(long dependent, long dependency) {
+        Set<Long> dependents = dependents(dependency);
+        if (!dependents.contains(dependent)) {
+            return; // nothing to copy or change
+        }
+        Chunk chunk = writableChunk(dependency, false);
+        int index = CellStore.rowOf(dependency) & (CHUNK_SIZE - 1);
+        Set<Long> set = chunk.writableSet(index);
+        set.remove(dependent);
+        edgeCount--;
+        if (set.isEmpty()) {
+            chunk.dependents[index] = null;
+            chunk.owned[index >>> 6] &= ~(1L << index); // the next set is made afresh
+            if (--chunk.count == 0) {
+                columns[CellStore.columnOf(dependency)][CellStore.rowOf(dependency) >>> CHUNK_SHIFT] = null;
+            }
+        }
+    }
+
+    // Record that a cell's formula reads a large range
+    public void addRange(long dependent, CellRange range) {
+        writableRanges().computeIfAbsent(dependent, k -> new ArrayList<>()).add(range);
+        RangeDependency dependency = new RangeDependency(dependent, range);
+        int lastColumn = CellStore.columnOf(range.end().getKey());
+        for (int col = CellStore.columnOf(range.start().getKey()); col <= lastColumn; col++) {
+            rangesByColumn.computeIfAbsent(col, k -> new ArrayList<>()).add(dependency);
+        }
+    }
+
+    public void removeRange(long dependent, CellRange range) {
+        List<CellRange> cellRanges = writableRanges().get(dependent);
+        cellRanges.remove(range);
+        if (cellRanges.isEmpty()) {
+            ranges.remove(dependent);
+        }
+        RangeDependency dependency = new RangeDependency(dependent, range);
+        int lastColumn = CellStore.columnOf(range.end().getKey());
+        for (int col = CellStore.columnOf(range.start().getKey()); col <= lastColumn; col++) {
+            List<RangeDependency> covering = rangesByColumn.get(col);
+            covering.remove(dependency); // one of them, if the formula reads the range twice
+            if (covering.isEmpty()) {
+                rangesByColumn.remove(col);
+            }
+        }
+    }
+
+    // The cells reading a cell through a dependency edge
+    public Set<Long> dependents(long key) {
+        Chunk chunk = chunk(key);
+        Set<Long> dependents = chunk == null ? null : chunk.dependents[CellStore.rowOf(key) & (CHUNK_SIZE - 1)];
+        return dependents == null ? Set.of() : dependents;
+    }
+
+    // The cells whose formulas read a cell: its dependency edges, plus the formulas with a large
+    // range around it. Only the ranges covering the cell's column are checked.
+    public Set<Long> dependentsOf(long key) {
+        Set<Long> dependents = dependents(key);
+        List<RangeDependency> covering = rangesByColumn.get(CellStore.columnOf(key));
+        if (covering == null) {
+            return dependents;
+        }
+        Set<Long> all = null;
+        for (RangeDependency dependency : covering) {
+            if (dependency.range().contains(key)) {
+                if (all == null) {
+                    all = new LinkedHashSet<>(dependents);
+                }
+                all.add(dependency.dependent());
+            }
+        }
+        return all == null ? dependents : all;
+    }
+
+    public long getEdgeCount() {
+        return edgeCount;
+    }
+
+    // Visit every cell that has dependents, with the cells reading it
+    public void forEachDependents(BiConsumer<Long, Set<Long>> action) {
+        for (int col = 0; col < columns.length; col++) {
+            Chunk[] chunks = columns[col];
+            if (chunks == null) continue;
+            for (int c = 0; c < chunks.length; c++) {
+                Chunk chunk = chunks[c];
+                if (chunk == null) continue;
+                for (int i = 0; i < CHUNK_SIZE; i++) {
+                    if (chunk.dependents[i] != null) {
+                        action.accept(CellStore.key(col, (c << CHUNK_SHIFT) | i), chunk.dependents[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    // cell -> large ranges its formula reads
+    public Map<Long, List<CellRange>> getRangeDependencies() {
+        return Collections.unmodifiableMap(ranges);
+    }
+
+    private Map<Long, List<CellRange>> writableRanges() {
+        if (rangesShared) {
+            Map<Long, List<CellRange>> copy = new HashMap<>();
+            ranges.forEach((key, cellRanges) -> copy.put(key, new ArrayList<>(cellRanges)));
+            ranges = copy;
+            Map<Integer, List<RangeDependency>> columnsCopy = new HashMap<>();
+            rangesByColumn.forEach((col, covering) -> columnsCopy.put(col, new ArrayList<>(covering)));
+            rangesByColumn = columnsCopy;
+            rangesShared = false;
+        }
+        return ranges;
+    }
+
+    private Chunk chunk(long key) {
+        int col = CellStore.columnOf(key);
+        int chunkIndex = CellStore.rowOf(key) >>> CHUNK_SHIFT;
+        if (col >= columns.length) {
+            return null;
+        }
+        Chunk[] chunks = columns[col];
+        return chunks == null || chunkIndex >= chunks.length ? null : chunks[chunkIndex];
+    }
+
+    // Find the chunk of a key for changing it, creating it when asked to.
+    // Whatever is still shared with a fork on the way to the chunk is copied first.
+    private Chunk writableChunk(long key, boolean create) {
+        int col = CellStore.columnOf(key);
+        int chunkIndex = CellStore.rowOf(key) >>> CHUNK_SHIFT;
+        if (col >= columns.length) {
+            if (!create) return null;
+            columns = Arrays.copyOf(columns, Math.max(col + 1, columns.length * 2));
+            columnVersions = Arrays.copyOf(columnVersions, columns.length);
+            columnsVersion = version;
+        } else if (columnsVersion != version) {
+            columns = columns.clone();
+            columnVersions = columnVersions.clone();
+            columnsVersion = version;
+        }
+        Chunk[] chunks = columns[col];
+        if (chunks == null || chunkIndex >= chunks.length) {
+            if (!create) return null;
+            chunks = chunks == null ? new Chunk[chunkIndex + 1] : Arrays.copyOf(chunks, Math.max(chunkIndex + 1, chunks.length * 2));
+            columns[col] = chunks;
+            columnVersions[col] = version;
+        } else if (columnVersions[col] != version) {
+            chunks = chunks.clone();
+            columns[col] = chunks;
+            columnVersions[col] = version;
+        }
+        Chunk chunk = chunks[chunkIndex];
+        if (chunk == null) {
+            if (!create) return null;
+            chunk = new Chunk();
+            chunk.version = version;
+            chunks[chunkIndex] = chunk;
+        } else if (chunk.version != version) {
+            chunk = chunk.copy(version);
+            chunks[chunkIndex] = chunk;
+        }
+        return chunk;
+    }
+}
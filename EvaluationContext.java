@@ -0,0 +1,15 @@
+// Supplies cell values to a compiled formula while it is being evaluated
+public interface EvaluationContext {
+
+    // Value of a single referenced cell
+    double valueOf(CellReference reference);
+
+    // Value of a single cell by its packed key
+    double valueOf(long key);
+
+    // Add the value of every cell in a range to a function's aggregate
+    void aggregate(CellRange range, Aggregate aggregate);
+
+    // Packed key of the cell whose formula is being evaluated; relative references point away from it
+    long currentCell();
+}
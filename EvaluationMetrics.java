@@ -0,0 +1,198 @@
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// EvaluationMonitor keeping counters and histograms: evaluations per edit, recalculation
+// latency and fan-out (cells dirtied per edit). Counting the evaluations of every cell, to find
+// the most evaluated ones, costs memory per cell and is only done when asked for. It can also
+// trace a sample of the recalculations, printing every cell visit of one recalculation out of N.
+public class EvaluationMetrics implements EvaluationMonitor {
+    private final LongAdder recalculations = new LongAdder();
+    private final LongAdder evaluations = new LongAdder();
+    private final LongAdder rangeCellReads = new LongAdder();
+    private final Map<Long, LongAdder> evaluationsPerCell = new ConcurrentHashMap<>(); // only filled while countingCells
+    private volatile boolean countingCells;
+    private final Histogram evaluationsPerEdit = new Histogram();
+    private final Histogram recalculationNanos = new Histogram();
+    private final Histogram fanOut = new Histogram();
+    private long evaluationsAtStart;
+
+    private int traceEvery; // trace one recalculation out of this many, 0 for no tracing
+    private PrintStream traceOut;
+    private volatile boolean tracing;
+
+    // Count the evaluations of each cell for getHottestCells; off by default
+    public void setCellCounting(boolean enabled) {
+        countingCells = enabled;
+        if (!enabled) {
+            evaluationsPerCell.clear();
+        }
+    }
+
+    // Print every cell visit of one recalculation out of every (1 traces all of them, 0 none)
+    public void setTraceSampling(int every, PrintStream out) {
+        if (every < 0) {
+            throw new IllegalArgumentException("Invalid trace sampling: " + every);
+        }
+        traceEvery = every;
+        traceOut = out;
+        tracing = false;
+    }
+
+    @Override
+    public void recalculationStarted(int editedCells) {
+        recalculations.increment();
+        evaluationsAtStart = evaluations.sum();
+        tracing = traceEvery > 0 && recalculations.sum() % traceEvery == 0;
+    }
+
+    @Override
+    public void recalculationFinished(int editedCells, int dirtyCells, long nanos) {
+        evaluationsPerEdit.record(evaluations.sum() - evaluationsAtStart);
+        recalculationNanos.record(nanos);
+        fanOut.record(dirtyCells);
+        if (tracing) {
+            traceOut.printf("Recalculated %d cells for %d edited cells in %d us%n", dirtyCells, editedCells, nanos / 1000);
+        }
+    }
+
+    @Override
+    public void cellVisited(long key) {
+        evaluations.increment();
+        if (countingCells) {
+            evaluationsPerCell.computeIfAbsent(key, k -> new LongAdder()).increment();
+        }
+        if (tracing) {
+            traceOut.println("Visiting cell: " + CellStore.name(key));
+        }
+    }
+
+    @Override
+    public void cellFinished(long key) {
+        if (tracing) {
+            traceOut.println("Finished visiting cell: " + CellStore.name(key));
+        }
+    }
+
+    @Override
+    public boolean observesRangeCellReads() {
+        return true;
+    }
+
+    @Override
+    public void rangeCellRead(long key, double value) {
+        rangeCellReads.increment();
+        if (tracing) {
+            traceOut.println("Evaluated content for cell " + CellStore.name(key) + ": " + value);
+        }
+    }
+
+    public long getRecalculations() {
+        return recalculations.sum();
+    }
+
+    // Formula evaluations, including those made by evaluateFormula outside of a recalculation
+    public long getEvaluations() {
+        return evaluations.sum();
+    }
+
+    public long getRangeCellReads() {
+        return rangeCellReads.sum();
+    }
+
+    public Histogram getEvaluationsPerEdit() {
+        return evaluationsPerEdit;
+    }
+
+    public Histogram getRecalculationNanos() {
+        return recalculationNanos;
+    }
+
+    public Histogram getFanOut() {
+        return fanOut;
+    }
+
+    // The cells evaluated most often, most evaluated first, e.g. {B1=12, C1=7}; empty unless
+    // cell counting is on
+    public Map<String, Long> getHottestCells(int limit) {
+        Map<String, Long> hottest = new LinkedHashMap<>();
+        evaluationsPerCell.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue().sum(), a.getValue().sum()))
+                .limit(limit)
+                .forEach(entry -> hottest.put(CellStore.name(entry.getKey()), entry.getValue().sum()));
+        return hottest;
+    }
+
+    public void reset() {
+        recalculations.reset();
+        evaluations.reset();
+        rangeCellReads.reset();
+        evaluationsPerCell.clear();
+        evaluationsPerEdit.reset();
+        recalculationNanos.reset();
+        fanOut.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "recalculations=" + getRecalculations() + ", evaluations=" + getEvaluations()
+                + ", evaluations per edit {" + evaluationsPerEdit + "}, recalculation ns {" + recalculationNanos
+                + "}, fan-out {" + fanOut + "}" + (countingCells ? ", hottest cells " + getHottestCells(5) : "");
+    }
+
+    // Histogram of non-negative values in power-of-two buckets: bucket i holds the values
+    // below 2^i that did not fit an earlier bucket, so percentiles are exact within a factor of 2
+    public static final class Histogram {
+        private final long[] buckets = new long[65];
+        private long count;
+        private long sum;
+        private long max;
+
+        public synchronized void record(long value) {
+            value = Math.max(0, value);
+            buckets[64 - Long.numberOfLeadingZeros(value)]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        public synchronized double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        // Upper bound of the bucket holding the given percentile (0-100), capped at the maximum
+        public synchronized long getPercentile(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int bucket = 0; bucket < buckets.length; bucket++) {
+                seen += buckets[bucket];
+                if (seen >= rank && seen > 0) {
+                    return bucket == 0 ? 0 : Math.min(max, bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1);
+                }
+            }
+            return 0;
+        }
+
+        synchronized void reset() {
+            Arrays.fill(buckets, 0);
+            count = 0;
+            sum = 0;
+            max = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("count=%d, mean=%.1f, p50=%d, p99=%d, max=%d",
+                    count, getMean(), getPercentile(50), getPercentile(99), max);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+// Receives what the evaluator does: recalculations, and every cell it visits. All methods do
+// nothing by default, and NONE is used unless a Spreadsheet is given another monitor, so an
+// unmonitored sheet pays no more than a call that the JIT compiles away.
+// Cell visits may be reported from several threads at once during parallel recalculation.
+public interface EvaluationMonitor {
+    EvaluationMonitor NONE = new EvaluationMonitor() {
+    };
+
+    // An edit (or a load) is about to recalculate, starting from the edited cells
+    default void recalculationStarted(int editedCells) {
+    }
+
+    // The recalculation finished after marking dirtyCells cells for recalculation
+    default void recalculationFinished(int editedCells, int dirtyCells, long nanos) {
+    }
+
+    // The evaluator starts evaluating the formula of a cell
+    default void cellVisited(long key) {
+    }
+
+    // The evaluator is done with the formula of a cell
+    default void cellFinished(long key) {
+    }
+
+    // A cell of a range was read on behalf of a function like SUM. Only reported to monitors
+    // that observe range cell reads.
+    default void rangeCellRead(long key, double value) {
+    }
+
+    // Whether rangeCellRead is wanted. Without it the values of a range are reduced in bulk
+    // straight from the stored columns, which is much faster than reading cells one by one.
+    default boolean observesRangeCellReads() {
+        return false;
+    }
+
+    // A recalculation left a cell without a value because it is on (or behind) a circular
+    // reference. Reported on the writing thread.
+    default void circularReference(long key) {
+    }
+
+    // A recalculation could not evaluate the formula of a cell, e.g. because it reads text.
+    // Reported on the writing thread.
+    default void cellFailed(long key, String message) {
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.List;
+
+// A node of a compiled formula; the tree is immutable and evaluated directly
+public interface Expression {
+
+    double evaluate(EvaluationContext context);
+
+    // Add this argument to a function's aggregate (ranges add every cell, everything else one value)
+    default void aggregate(EvaluationContext context, Aggregate aggregate) {
+        aggregate.add(evaluate(context));
+    }
+
+    // A number, e.g. 10 or 2.5
+    record Constant(double value) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            return value;
+        }
+    }
+
+    // A single cell reference, e.g. A1
+    record Reference(CellReference reference) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            return context.valueOf(reference);
+        }
+    }
+
+    // A range of cells, only allowed as a function argument, e.g. A1:B2
+    record Range(CellRange range) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            throw new IllegalArgumentException("Invalid range: " + range);
+        }
+
+        @Override
+        public void aggregate(EvaluationContext context, Aggregate aggregate) {
+            context.aggregate(range, aggregate);
+        }
+    }
+
+    // A reference kept as an offset from the cell the formula is in (R1C1 style), so one compiled
+    // formula serves a whole column of copies: A1 in C1 and A2 in C2 are both R[0]C[-2]
+    record RelativeReference(int columnOffset, int rowOffset) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            return context.valueOf(resolve(context.currentCell()));
+        }
+
+        // Packed key of the referenced cell, seen from a cell
+        public long resolve(long cellKey) {
+            return CellStore.key(CellStore.columnOf(cellKey) + columnOffset, CellStore.rowOf(cellKey) + rowOffset);
+        }
+    }
+
+    // A range whose corners are offsets from the cell the formula is in, e.g. A1:B2 in C3
+    record RelativeRange(RelativeReference start, RelativeReference end) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            throw new IllegalArgumentException("Invalid range: " + resolve(context.currentCell()));
+        }
+
+        @Override
+        public void aggregate(EvaluationContext context, Aggregate aggregate) {
+            context.aggregate(resolve(context.currentCell()), aggregate);
+        }
+
+        // The range seen from a cell
+        public CellRange resolve(long cellKey) {
+            return new CellRange(CellReference.of(start.resolve(cellKey)), CellReference.of(end.resolve(cellKey)));
+        }
+    }
+
+    // Unary minus, e.g. -A1
+    record Negation(Expression operand) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            return -operand.evaluate(context);
+        }
+    }
+
+    // Basic operators (+, -, *, /)
+    record BinaryOperation(char operator, Expression left, Expression right) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            double a = left.evaluate(context);
+            double b = right.evaluate(context);
+            return switch (operator) {
+                case '+' -> a + b;
+                case '-' -> a - b;
+                case '*' -> a * b;
+                case '/' -> a / b;
+                default -> 0;
+            };
+        }
+    }
+
+    // Function call (MAX, MIN, SUM, AVERAGE) with numbers, references and ranges as arguments
+    record FunctionCall(AggregateFunction function, List<Expression> arguments) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            Aggregate aggregate = new Aggregate();
+            for (Expression argument : arguments) {
+                argument.aggregate(context, aggregate);
+            }
+            return function.apply(aggregate);
+        }
+    }
+
+    // Content that could not be compiled; evaluating it reports the original error
+    record Invalid(String message) implements Expression {
+        @Override
+        public double evaluate(EvaluationContext context) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+}
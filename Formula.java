@@ -0,0 +1,128 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Cell content compiled once when it is set, so evaluation never re-parses the text
+public final class Formula {
+    private static final Formula EMPTY = invalid("The cell does not exist or is empty.");
+
+    private final Expression expression; // compiled expression tree
+    private final List<CellReference> references; // single cells the formula depends on
+    private final List<CellRange> ranges; // ranges the formula depends on
+    private final List<Expression.RelativeReference> relativeReferences; // the same for a shared formula, as offsets
+    private final List<Expression.RelativeRange> relativeRanges;
+    private final FormulaShape shape; // text of a shared formula, rendered for each cell; null otherwise
+
+    private Formula(Expression expression, List<CellReference> references, List<CellRange> ranges) {
+        this(expression, references, ranges, List.of(), List.of(), null);
+    }
+
+    private Formula(Expression expression, List<CellReference> references, List<CellRange> ranges,
+                    List<Expression.RelativeReference> relativeReferences, List<Expression.RelativeRange> relativeRanges,
+                    FormulaShape shape) {
+        this.expression = expression;
+        this.references = references;
+        this.ranges = ranges;
+        this.relativeReferences = relativeReferences;
+        this.relativeRanges = relativeRanges;
+        this.shape = shape;
+    }
+
+    // Compile cell content: "=..." is parsed as a formula, anything else as a number
+    public static Formula compile(String content) {
+        if (content == null || content.isEmpty()) {
+            return EMPTY;
+        }
+        if (!content.startsWith("=")) {
+            try {
+                return new Formula(new Expression.Constant(Double.parseDouble(content)), List.of(), List.of());
+            } catch (NumberFormatException e) {
+                return invalid("Invalid value: " + content);
+            }
+        }
+        FormulaParser parser = new FormulaParser(content.substring(1));
+        try {
+            Expression expression = parser.parse();
+            return new Formula(expression, List.copyOf(parser.getReferences()), List.copyOf(parser.getRanges()));
+        } catch (IllegalArgumentException e) {
+            return invalid(e.getMessage());
+        }
+    }
+
+    // Compile the formula of a cell so that every cell with the same shape can use it: references
+    // are kept as offsets from the cell evaluating it. Returns null for an invalid formula, whose
+    // error names the cells as written and so cannot be shared.
+    public static Formula compileShared(String content, long cellKey, FormulaShape shape) {
+        FormulaParser parser = new FormulaParser(content.substring(1), cellKey);
+        try {
+            Expression expression = parser.parse();
+            return new Formula(expression, List.of(), List.of(),
+                    List.copyOf(parser.getRelativeReferences()), List.copyOf(parser.getRelativeRanges()), shape);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Rebuild a formula from an already compiled expression tree (e.g. read from a snapshot)
+    public static Formula of(Expression expression, List<CellReference> references, List<CellRange> ranges) {
+        return new Formula(expression, List.copyOf(references), List.copyOf(ranges));
+    }
+
+    // Rebuild a shared formula from its compiled expression tree; without a shape, the cells
+    // using it keep their own text
+    public static Formula ofShared(Expression expression, List<Expression.RelativeReference> relativeReferences,
+                                   List<Expression.RelativeRange> relativeRanges) {
+        return new Formula(expression, List.of(), List.of(), List.copyOf(relativeReferences), List.copyOf(relativeRanges), null);
+    }
+
+    private static Formula invalid(String message) {
+        return new Formula(new Expression.Invalid(message), List.of(), List.of());
+    }
+
+    public double evaluate(EvaluationContext context) {
+        return expression.evaluate(context);
+    }
+
+    // Value of content that compiled to a plain number (e.g. 42), or null otherwise
+    public Double getConstantValue() {
+        return expression instanceof Expression.Constant constant ? constant.value() : null;
+    }
+
+    public Expression getExpression() {
+        return expression;
+    }
+
+    // Whether the formula reads cells through offsets from the cell evaluating it, so that cells
+    // with the same text may need different formulas
+    public boolean isShared() {
+        return !relativeReferences.isEmpty() || !relativeRanges.isEmpty();
+    }
+
+    // The text of a shared formula as written in a cell, or null for a formula that is not shared
+    public String getText(long cellKey) {
+        return shape == null ? null : shape.render(cellKey);
+    }
+
+    // Single cells the formula depends on when it is the formula of a cell
+    public List<CellReference> getReferences(long cellKey) {
+        if (relativeReferences.isEmpty()) {
+            return references;
+        }
+        List<CellReference> resolved = new ArrayList<>(relativeReferences.size());
+        for (Expression.RelativeReference reference : relativeReferences) {
+            resolved.add(CellReference.of(reference.resolve(cellKey)));
+        }
+        return resolved;
+    }
+
+    // Ranges the formula depends on when it is the formula of a cell
+    public List<CellRange> getRanges(long cellKey) {
+        if (relativeRanges.isEmpty()) {
+            return ranges;
+        }
+        List<CellRange> resolved = new ArrayList<>(relativeRanges.size());
+        for (Expression.RelativeRange range : relativeRanges) {
+            resolved.add(range.resolve(cellKey));
+        }
+        return resolved;
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiles the text of a formula (without the leading '=') into an expression tree
+public final class FormulaParser {
+    private final String text;
+    private int position;
+    private final boolean relative; // references become offsets from the origin cell
+    private final long origin;
+    private final List<CellReference> references = new ArrayList<>(); // single cells the formula reads
+    private final List<CellRange> ranges = new ArrayList<>(); // ranges the formula reads
+    private final List<Expression.RelativeReference> relativeReferences = new ArrayList<>(); // same, as offsets
+    private final List<Expression.RelativeRange> relativeRanges = new ArrayList<>();
+
+    public FormulaParser(String text) {
+        this.text = text;
+        this.relative = false;
+        this.origin = 0;
+    }
+
+    // Parser for a formula shared between cells: references are compiled as offsets from the
+    // cell at origin, the one whose text is parsed
+    public FormulaParser(String text, long origin) {
+        this.text = text;
+        this.relative = true;
+        this.origin = origin;
+    }
+
+    // Parse the whole formula; throws IllegalArgumentException for invalid formulas
+    public Expression parse() {
+        Expression expression = parseExpression();
+        skipWhitespace();
+        if (position < text.length()) {
+            throw invalidToken();
+        }
+        return expression;
+    }
+
+    public List<CellReference> getReferences() {
+        return references;
+    }
+
+    public List<CellRange> getRanges() {
+        return ranges;
+    }
+
+    public List<Expression.RelativeReference> getRelativeReferences() {
+        return relativeReferences;
+    }
+
+    public List<Expression.RelativeRange> getRelativeRanges() {
+        return relativeRanges;
+    }
+
+    // expression := term (('+' | '-') term)*
+    private Expression parseExpression() {
+        Expression left = parseTerm();
+        while (true) {
+            char operator = peek();
+            if (operator != '+' && operator != '-') {
+                return left;
+            }
+            position++;
+            left = new Expression.BinaryOperation(operator, left, parseTerm());
+        }
+    }
+
+    // term := unary (('*' | '/') unary)*
+    private Expression parseTerm() {
+        Expression left = parseUnary();
+        while (true) {
+            char operator = peek();
+            if (operator != '*' && operator != '/') {
+                return left;
+            }
+            position++;
+            left = new Expression.BinaryOperation(operator, left, parseUnary());
+        }
+    }
+
+    // unary := '-' unary | primary
+    private Expression parseUnary() {
+        if (peek() == '-') {
+            position++;
+            return new Expression.Negation(parseUnary());
+        }
+        return parsePrimary();
+    }
+
+    // primary := number | reference | function '(' arguments ')' | '(' expression ')'
+    private Expression parsePrimary() {
+        char c = peek();
+        if (isDigit(c) || c == '.') {
+            return new Expression.Constant(parseNumber());
+        }
+        if (c == '(') {
+            position++;
+            Expression inner = parseExpression();
+            expect(')');
+            return inner;
+        }
+        if (isLetter(c)) {
+            int start = position;
+            String name = readLetters();
+            if (peek() == '(') {
+                return parseFunction(name, start);
+            }
+            position = start;
+            CellReference reference = parseReference();
+            if (relative) {
+                Expression.RelativeReference offset = offsetOf(reference);
+                relativeReferences.add(offset);
+                return offset;
+            }
+            references.add(reference);
+            return new Expression.Reference(reference);
+        }
+        throw invalidToken();
+    }
+
+    // Function arguments: numbers, references, ranges (A1:B2) or any expression
+    private Expression parseFunction(String name, int start) {
+        AggregateFunction function = AggregateFunction.fromName(name);
+        if (function == null) {
+            position = start;
+            throw invalidToken();
+        }
+        expect('(');
+        List<Expression> arguments = new ArrayList<>();
+        if (peek() != ')') {
+            do {
+                arguments.add(parseArgument());
+            } while (consume(','));
+        }
+        expect(')');
+        return new Expression.FunctionCall(function, List.copyOf(arguments));
+    }
+
+    private Expression parseArgument() {
+        int start = position;
+        if (isLetter(peek())) {
+            CellReference first = parseReference();
+            if (consume(':')) {
+                CellReference last = parseReference();
+                if (relative) {
+                    Expression.RelativeRange range = new Expression.RelativeRange(offsetOf(first), offsetOf(last));
+                    relativeRanges.add(range);
+                    return range;
+                }
+                CellRange range = new CellRange(first, last);
+                ranges.add(range);
+                return new Expression.Range(range);
+            }
+            position = start;
+        }
+        return parseExpression();
+    }
+
+    // reference := letters digits, e.g. A1 or AB12
+    private CellReference parseReference() {
+        skipWhitespace();
+        int start = position;
+        String column = readLetters();
+        int digitsStart = position;
+        while (position < text.length() && isDigit(text.charAt(position))) {
+            position++;
+        }
+        if (column.isEmpty() || digitsStart == position) {
+            position = start;
+            throw invalidToken();
+        }
+        try {
+            return new CellReference(column, Integer.parseInt(text.substring(digitsStart, position)));
+        } catch (NumberFormatException e) {
+            position = start;
+            throw invalidToken();
+        }
+    }
+
+    // Position of a referenced cell relative to the origin cell
+    private Expression.RelativeReference offsetOf(CellReference reference) {
+        return new Expression.RelativeReference(CellStore.columnOf(reference.getKey()) - CellStore.columnOf(origin),
+                reference.getRow() - CellStore.rowOf(origin));
+    }
+
+    private double parseNumber() {
+        int start = position;
+        while (position < text.length() && isDigit(text.charAt(position))) {
+            position++;
+        }
+        if (position < text.length() && text.charAt(position) == '.') {
+            position++;
+            while (position < text.length() && isDigit(text.charAt(position))) {
+                position++;
+            }
+        }
+        String number = text.substring(start, position);
+        if (number.equals(".")) {
+            position = start;
+            throw invalidToken();
+        }
+        return Double.parseDouble(number);
+    }
+
+    private String readLetters() {
+        int start = position;
+        while (position < text.length() && isLetter(text.charAt(position))) {
+            position++;
+        }
+        return text.substring(start, position);
+    }
+
+    // Next non-space character without consuming it, or 0 at the end of the formula
+    private char peek() {
+        skipWhitespace();
+        return position < text.length() ? text.charAt(position) : 0;
+    }
+
+    private boolean consume(char expected) {
+        if (peek() == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char expected) {
+        if (!consume(expected)) {
+            throw invalidToken();
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+    }
+
+    // Error for the token starting at the current position
+    private IllegalArgumentException invalidToken() {
+        if (position >= text.length()) {
+            return new IllegalArgumentException("Invalid formula: " + text);
+        }
+        int end = position + 1;
+        if (!isDelimiter(text.charAt(position))) {
+            while (end < text.length() && !isDelimiter(text.charAt(end))) {
+                end++;
+            }
+        }
+        return new IllegalArgumentException("Invalid token in formula: " + text.substring(position, end));
+    }
+
+    private static boolean isDelimiter(char c) {
+        return "+-*/(),:".indexOf(c) >= 0 || Character.isWhitespace(c);
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+}
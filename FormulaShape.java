@@ -0,0 +1,99 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The text of a formula with every reference replaced by its offset from the cell the formula is
+// in, R1C1 style: =A1*B1 in C1 and =A2*B2 in C2 both have the shape =R[0]C[-2]*R[0]C[-1].
+// Cells whose formulas have the same shape share one compiled formula, and the text of each of
+// them is rendered back from the shape and the cell's position.
+public final class FormulaShape {
+    private final String[] text; // the text before, between and after the references
+    private final int[] offsets; // column and row offset of every reference, in text order
+    private final String key; // the R1C1 form, e.g. "=R[0]C[-2]*R[0]C[-1]"
+
+    private FormulaShape(String[] text, int[] offsets, String key) {
+        this.text = text;
+        this.offsets = offsets;
+        this.key = key;
+    }
+
+    // Shape of a cell's content, or null if it is not a formula or would not render back to
+    // the same text (e.g. A01, or brackets that could be mistaken for an offset)
+    public static FormulaShape of(String content, long cellKey) {
+        if (content == null || !content.startsWith("=") || content.indexOf('[') >= 0) {
+            return null;
+        }
+        int column = CellStore.columnOf(cellKey);
+        int row = CellStore.rowOf(cellKey);
+        List<String> text = new ArrayList<>();
+        int[] offsets = new int[8];
+        StringBuilder key = new StringBuilder(content.length() + 16);
+        int textStart = 0;
+        int position = 1;
+        while (position < content.length()) {
+            if (!isLetter(content.charAt(position))) {
+                position++;
+                continue;
+            }
+            int lettersStart = position;
+            while (position < content.length() && isLetter(content.charAt(position))) {
+                position++;
+            }
+            int digitsStart = position;
+            while (position < content.length() && isDigit(content.charAt(position))) {
+                position++;
+            }
+            if (digitsStart == position) {
+                continue; // a function name
+            }
+            int digits = position - digitsStart;
+            if (digitsStart - lettersStart > 3 || digits > 9 || (digits > 1 && content.charAt(digitsStart) == '0')) {
+                return null;
+            }
+            int count = text.size();
+            if (2 * count + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[2 * count] = CellReference.columnIndex(content.substring(lettersStart, digitsStart)) - column;
+            offsets[2 * count + 1] = Integer.parseInt(content, digitsStart, position, 10) - row;
+            String before = content.substring(textStart, lettersStart);
+            text.add(before);
+            key.append(before).append("R[").append(offsets[2 * count + 1]).append("]C[").append(offsets[2 * count]).append(']');
+            textStart = position;
+        }
+        String after = content.substring(textStart);
+        text.add(after);
+        key.append(after);
+        return new FormulaShape(text.toArray(new String[0]), Arrays.copyOf(offsets, 2 * (text.size() - 1)), key.toString());
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    // The formula's text as written in a cell, e.g. "=A2*B2" for C2
+    public String render(long cellKey) {
+        int column = CellStore.columnOf(cellKey);
+        int row = CellStore.rowOf(cellKey);
+        StringBuilder content = new StringBuilder(key.length());
+        for (int i = 0; i < offsets.length / 2; i++) {
+            content.append(text[i])
+                    .append(CellReference.columnName(column + offsets[2 * i]))
+                    .append(row + offsets[2 * i + 1]);
+        }
+        return content.append(text[text.length - 1]).toString();
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Load generator for a SpreadsheetServer on localhost. Every client is a virtual thread with a
+// connection of its own, sending one request at a time: sets of numbers in A1:A1000 and gets of
+// B1, a SUM over that column. Reports the throughput and the latency percentiles.
+//   java LoadGenerator PORT [CLIENTS] [REQUESTS_PER_CLIENT] [WRITE_PERCENT]
+public final class LoadGenerator {
+    private static final int ROWS = 1000;
+
+    // Outcome of a run; latencies in microseconds
+    public record Report(long requests, long errors, double seconds, long p50, long p99, long max) {
+        public double throughput() {
+            return requests / seconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests in %.3f s: %.0f requests/s, latency p50 %d us, p99 %d us, max %d us, %d errors",
+                    requests, seconds, throughput(), p50, p99, max, errors);
+        }
+    }
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: java LoadGenerator PORT [CLIENTS] [REQUESTS_PER_CLIENT] [WRITE_PERCENT]");
+            System.exit(2);
+        }
+        int port = Integer.parseInt(args[0]);
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 10_000;
+        int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        System.out.println(run(port, clients, requests, writePercent));
+    }
+
+    // Run the clients against a server and wait for all of them to finish
+    public static Report run(int port, int clients, int requests, int writePercent) throws IOException, InterruptedException {
+        try (Connection setup = new Connection(port)) {
+            setup.request("set B1 =SUM(A1:A" + ROWS + ")");
+        }
+        long[][] latencies = new long[clients][];
+        long[] errors = new long[clients];
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> running = new ArrayList<>();
+            for (int client = 0; client < clients; client++) {
+                int index = client;
+                running.add(executor.submit(() -> {
+                    latencies[index] = new long[requests];
+                    Random random = new Random(index);
+                    try (Connection connection = new Connection(port)) {
+                        for (int i = 0; i < requests; i++) {
+                            String request = random.nextInt(100) < writePercent
+                                    ? "set A" + (random.nextInt(ROWS) + 1) + " " + random.nextInt(1000)
+                                    : "get B1";
+                            long sent = System.nanoTime();
+                            if (!connection.request(request).startsWith("ok")) {
+                                errors[index]++;
+                            }
+                            latencies[index][i] = System.nanoTime() - sent;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> client : running) {
+                client.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("A client failed", e.getCause());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        return new Report(all.length, Arrays.stream(errors).sum(), seconds,
+                percentile(all, 50) / 1000, percentile(all, 99) / 1000, all.length == 0 ? 0 : all[all.length - 1] / 1000);
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(sorted.length * percentile / 100) - 1)];
+    }
+
+    // A client connection sending a request and waiting for its reply
+    private static final class Connection implements Closeable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final BufferedWriter out;
+
+        Connection(int port) throws IOException {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        String request(String request) throws IOException {
+            out.write(request);
+            out.newLine();
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new EOFException("Connection closed by the server");
+            }
+            return reply;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -1,11 +1,31 @@
 import java.util.InputMismatchException;
 import java.util.Scanner;
-import java.io.IOException;
+import java.io.*;
 
 public class Main {
+    // Tells the user about the cells a recalculation could not evaluate
+    private static final EvaluationMonitor CONSOLE = new EvaluationMonitor() {
+        @Override
+        public void circularReference(long key) {
+            System.out.println("Circular reference detected while updating: " + CellStore.name(key));
+        }
+
+        @Override
+        public void cellFailed(long key, String message) {
+            System.out.println("Error evaluating cell " + CellStore.name(key) + ": " + message);
+        }
+    };
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(runBatch(args.length > 1 ? args[1] : "-"));
+        }
+        if (args.length > 0 && args[0].equals("--server")) {
+            runServer(args.length > 1 ? Integer.parseInt(args[1]) : 7070);
+            return;
+        }
 
-        Spreadsheet spreadsheet = new Spreadsheet(); //create new spreadsheet
+        Spreadsheet spreadsheet = newSpreadsheet(); //create new spreadsheet
         Scanner scanner = new Scanner(System.in);
         boolean exit = false;
         String column;
@@ -59,7 +79,11 @@ public class Main {
                     scanner.nextLine(); // clear newline
                     System.out.println("Set cell content: ");
                     String content = scanner.nextLine();
-                    spreadsheet.setCellContent(column, row, content);
+                    try {
+                        spreadsheet.setCellContent(column, row, content);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Error setting the cell: " + e.getMessage());
+                    }
                     break;
 
                 case 2: // View cell content
@@ -78,7 +102,11 @@ public class Main {
                         }
                     }
                     scanner.nextLine(); // clear newline
-                    System.out.println("The cell content, e.g = A1+B2: " + spreadsheet.getCellContent(column, row));
+                    try {
+                        System.out.println("The cell content, e.g = A1+B2: " + spreadsheet.getCellContent(column, row));
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Error reading the cell: " + e.getMessage());
+                    }
                     break;
 
                 case 3: // Show all cell data
@@ -103,7 +131,9 @@ public class Main {
                     System.out.println("Enter filename to load: ");
                     String loadFile = scanner.nextLine();
                     try {
-                        spreadsheet.loadSpreadsheet(loadFile);
+                        Spreadsheet.LoadStatistics loaded = spreadsheet.loadSpreadsheet(loadFile);
+                        System.out.printf("Loaded %d lines in %.3f s (%.0f lines/s)%n",
+                                loaded.lines(), loaded.seconds(), loaded.linesPerSecond());
                     } catch (IOException e) {
                         System.out.println("Error loading file: " + e.getMessage());
                     }
@@ -150,4 +180,38 @@ public class Main {
         }
         scanner.close();
     }
+
+    // A spreadsheet that reports the cells it cannot evaluate on the console
+    private static Spreadsheet newSpreadsheet() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setEvaluationMonitor(CONSOLE);
+        return spreadsheet;
+    }
+
+    // Server mode: java Main --server [PORT] serves one spreadsheet to clients on localhost
+    // (see SpreadsheetServer) until the process is stopped
+    private static void runServer(int port) {
+        try (SpreadsheetServer server = new SpreadsheetServer(newSpreadsheet(), port)) {
+            System.out.println("Serving the spreadsheet on localhost:" + server.getPort());
+            server.join();
+        } catch (IOException e) {
+            System.err.println("Error starting the server: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Headless mode: java Main --batch [SCRIPT] runs the commands of a script (or of stdin, for
+    // "-" or no script) with a BatchRunner. Its records are the only thing written to stdout;
+    // messages of the engine go to stderr. Exits with 1 if a command failed.
+    private static int runBatch(String script) {
+        Writer results = new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), System.out.charset());
+        System.setOut(System.err);
+        try (Reader commands = script.equals("-") ? new InputStreamReader(System.in) : new FileReader(script)) {
+            return new BatchRunner(newSpreadsheet(), results).run(commands) > 0 ? 1 : 0;
+        } catch (IOException e) {
+            System.err.println("Error reading the script: " + e.getMessage());
+            return 2;
+        }
+    }
 }
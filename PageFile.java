@@ -0,0 +1,67 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Fixed-size pages in a scratch file, memory-mapped a segment at a time as the file grows.
+// Freed pages are handed out again before the file grows. The file is deleted when closed.
+public final class PageFile implements Closeable {
+    private static final int SEGMENT_PAGES = 4096; // pages mapped at a time
+
+    private final FileChannel channel;
+    private final int pageSize;
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private int[] freePages = new int[64];
+    private int freeCount;
+    private int pageCount; // pages handed out so far, freed or not
+
+    public PageFile(Path path, int pageSize) throws IOException {
+        this.pageSize = pageSize;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    // A page nobody uses, mapping another segment of the file when all are taken
+    public synchronized int allocate() throws IOException {
+        if (freeCount > 0) {
+            return freePages[--freeCount];
+        }
+        if (pageCount == segments.size() * SEGMENT_PAGES) {
+            long segmentSize = (long) SEGMENT_PAGES * pageSize;
+            segments.add(channel.map(FileChannel.MapMode.READ_WRITE, segments.size() * segmentSize, segmentSize));
+        }
+        return pageCount++;
+    }
+
+    // Give a page back; may be called from any thread
+    public synchronized void free(int page) {
+        if (freeCount == freePages.length) {
+            freePages = Arrays.copyOf(freePages, freeCount * 2);
+        }
+        freePages[freeCount++] = page;
+    }
+
+    // The bytes of a page, as a buffer of its own
+    public synchronized ByteBuffer page(int page) {
+        return segments.get(page / SEGMENT_PAGES).slice((page % SEGMENT_PAGES) * pageSize, pageSize);
+    }
+
+    public synchronized int getPagesInUse() {
+        return pageCount - freeCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,333 +1,1300 @@
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 
 // Class representing a Spreadsheet
 public class Spreadsheet {
-    private final Map<String, Cell> cells = new HashMap<>(); // cells stored by coordinates
-    private final Set<String> visitedCells = new HashSet<>(); // For circular reference detection
-    private final Map<String, Set<String>> dependencies = new HashMap<>(); // Track cell dependencies
+    private static final int PARALLEL_LEVEL_SIZE = 256; // smaller levels are not worth handing to other threads
+    private static final int LOAD_BUFFER_SIZE = 1 << 16; // characters read from a file at a time
+    private static final int EXPANDED_RANGE_SIZE = 4096; // larger ranges are not turned into one dependency per cell
+    private static final int SHARED_FORMULA_LIMIT = 4096; // distinct formula shapes remembered for new cells
 
-    // Show spreadsheet in table form
+    private CellStore cells; // cells stored by packed (column, row) coordinates
+    private volatile CellStore published; // last fully recalculated version for lock-free reads, null unless enabled
+    private final boolean readOnly; // a version handed out by snapshot()
+    private DependencyGraph dependencies; // Track cell dependencies
+    private volatile SpreadsheetSnapshot pendingDependencies; // opened snapshot whose edges are not in the graph yet
+    // shape (e.g. "=R[0]C[-2]*R[0]C[-1]") -> formula compiled once for every cell of that shape, least recently used first
+    private final Map<String, Formula> sharedFormulas = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Formula> eldest) {
+            return size() > SHARED_FORMULA_LIMIT; // cells keep the formulas they already have
+        }
+    };
+    private ExecutorService recalculationPool; // evaluates large dependency levels in parallel, null for serial recalculation
+    private int recalculationThreads = 1;
+    private volatile boolean lazyEvaluation; // edits only invalidate, formulas are evaluated when read
+    private EvaluationMonitor monitor = EvaluationMonitor.NONE; // sees every recalculation and cell visit
+    private ChangeJournal journal; // every edit is appended here when the sheet is journaled, null otherwise
+    private String journalSnapshot; // snapshot file the journal is folded into by compactJournal()
+    private ExecutorService compactionExecutor; // background thread folding old journals into the snapshot
+    private Future<?> compaction; // last compaction started, null if none
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>(); // told what every write changed
+    private final Set<Long> changedCells = new LinkedHashSet<>(); // changed by the current write, while anyone listens
+    private int undoLimit; // versions kept for undo(), 0 when undo is off
+    private final Deque<Version> undoVersions = new ArrayDeque<>(); // the versions before the last writes, latest first
+    private final Deque<Version> redoVersions = new ArrayDeque<>(); // versions left by undo(), latest first
+
+    // The cells and dependency graph as they were between two writes. Both share whatever has
+    // not changed since with the live ones, so a version costs as much as the writes after it.
+    private record Version(CellStore cells, DependencyGraph dependencies) {
+    }
+
+    // What a load or an import read: lines of the file, cells stored, and how long it took
+    public record LoadStatistics(long lines, long cells, long nanos) {
+        public double seconds() {
+            return Math.max(nanos, 1) / 1e9;
+        }
+
+        public double linesPerSecond() {
+            return lines / seconds();
+        }
+
+        public double cellsPerSecond() {
+            return cells / seconds();
+        }
+    }
+
+    // Told about the cells a write changed: the edited cells and every cell recalculated because
+    // of them, by name. Called on the writing thread once the new version is published.
+    public interface ChangeListener {
+        void cellsChanged(Set<String> cells);
+    }
+
+    // Show spreadsheet in table form: the first maxColumns columns of rows 1 to maxRows
     public void showSpreadsheetInTableForm(int maxColumns, int maxRows) {
-        int cellWidth = 15;
-        System.out.print("   |"); // Space for row numbers
-        for (char col = 'A'; col < 'A' + maxColumns; col++) {
-            System.out.printf("%-" + cellWidth + "s|", col);  // Print column headers
+        try (TableView view = new TableView(this, 0, 1, maxColumns, maxRows)) {
+            PrintWriter out = new PrintWriter(System.out);
+            view.render(out);
+        }
+    }
+
+    // Create a new Spreadsheet
+    public Spreadsheet() {
+        this(new CellStore(), new DependencyGraph(), false);
+    }
+
+    private Spreadsheet(CellStore cells, DependencyGraph dependencies, boolean readOnly) {
+        this.cells = cells;
+        this.dependencies = dependencies;
+        this.readOnly = readOnly;
+    }
+
+    // Serve reads (getCellContent, evaluateFormula, showing and saving as text) from the last fully
+    // recalculated version without locks, while edits are applied to the next version. Writers
+    // (edits, loads and settings) are serialized; each one publishes a new version when it is done.
+    public synchronized void setConcurrentReads(boolean enabled) {
+        requireWritable();
+        if (enabled && cells.isPaging()) {
+            throw new IllegalStateException("Concurrent reads cannot be combined with paged storage");
         }
-        System.out.println();
+        published = enabled ? cells.freeze() : null;
+    }
+
+    public boolean isConcurrentReads() {
+        return published != null;
+    }
 
-        for (int i = 0; i < maxColumns; i++) {
-            System.out.print("-".repeat(cellWidth) + "+"); // separator lines
+    // A read-only spreadsheet holding the current version of the cells; it never changes,
+    // so several cells can be read from it consistently while edits go on
+    public Spreadsheet snapshot() {
+        CellStore version = published;
+        if (version == null) {
+            synchronized (this) {
+                version = readOnly ? cells : cells.freeze();
+            }
         }
-        System.out.println();
+        Spreadsheet snapshot = new Spreadsheet(version, new DependencyGraph(), true);
+        snapshot.lazyEvaluation = lazyEvaluation;
+        return snapshot;
+    }
 
-        for (int row = 1; row <= maxRows; row++) {
-            System.out.printf("%3d| ", row); // Print row number
-            for (char col = 'A'; col < 'A' + maxColumns; col++) {
-                String cellContent = getCellContent(String.valueOf(col), row);
-                if (cellContent == null || cellContent.isEmpty()) {
-                    System.out.printf("%-" + cellWidth + "s|", "0"); // Empty cell as 0
-                } else {
-                    System.out.printf("%-" + cellWidth + "s|", cellContent); // Print cell content
+    // A writable copy of the spreadsheet as it is now, e.g. to try other inputs and compare the
+    // results (see getDifferences). It takes O(1) time: the copy shares the cells and the
+    // dependency graph with this spreadsheet, and each side copies a block of them the first time
+    // it changes it. Settings, listeners, the journal and the undo history are not carried over,
+    // except lazy evaluation, which the copy needs for the formulas still waiting for a read.
+    public synchronized Spreadsheet fork() {
+        requireWritable();
+        Spreadsheet copy = new Spreadsheet(cells.fork(), dependencies().fork(), false);
+        copy.lazyEvaluation = lazyEvaluation;
+        return copy;
+    }
+
+    // Names of the cells whose content or value differs from another spreadsheet, e.g. a fork of
+    // this one. Blocks of cells the two still share are skipped, so this costs as much as the
+    // blocks changed since the fork.
+    public Set<String> getDifferences(Spreadsheet other) {
+        CellStore mine = snapshot().cells;
+        CellStore theirs = other.snapshot().cells;
+        Set<String> names = new LinkedHashSet<>();
+        mine.forEachDifference(theirs, key -> names.add(CellStore.name(key)));
+        return names;
+    }
+
+    // Keep the versions before the last writes (edits and loads), so they can be undone.
+    // 0, the default, turns undo off. Taking a version is O(1); each kept version holds on to the
+    // blocks of cells changed after it. The aggregate index is not versioned: with it enabled,
+    // undo and redo build it again.
+    public synchronized void setUndoLimit(int versions) {
+        requireWritable();
+        if (versions < 0) {
+            throw new IllegalArgumentException("Invalid undo limit: " + versions);
+        }
+        undoLimit = versions;
+        while (undoVersions.size() > versions) {
+            undoVersions.removeLast();
+        }
+        if (versions == 0) {
+            redoVersions.clear();
+        }
+    }
+
+    public int getUndoLimit() {
+        return undoLimit;
+    }
+
+    // Go back to the version before the last write; returns false if there is none
+    public synchronized boolean undo() {
+        requireWritable();
+        Version version = undoVersions.poll();
+        if (version == null) {
+            return false;
+        }
+        redoVersions.push(currentVersion());
+        restore(version);
+        return true;
+    }
+
+    // Go forward to the version the last undo() left; returns false if there is none
+    public synchronized boolean redo() {
+        requireWritable();
+        Version version = redoVersions.poll();
+        if (version == null) {
+            return false;
+        }
+        undoVersions.push(currentVersion());
+        restore(version);
+        return true;
+    }
+
+    // The cells and dependency graph as they are now, for undo; null when undo is off
+    private Version currentVersion() {
+        return undoLimit == 0 ? null : new Version(cells.freeze(), dependencies().fork());
+    }
+
+    // Keep the version before a write that went through; the undone versions are dropped
+    private void remember(Version before) {
+        if (before == null) {
+            return;
+        }
+        undoVersions.push(before);
+        if (undoVersions.size() > undoLimit) {
+            undoVersions.removeLast();
+        }
+        redoVersions.clear();
+    }
+
+    // Make a kept version the live one. The cells it has different from the current version are
+    // journaled and passed to the change listeners like any other write.
+    private void restore(Version version) {
+        CellStore target = version.cells();
+        cells.forEachDifference(target, key -> {
+            if (journal != null && !cells.getContent(key).equals(target.getContent(key))) {
+                try {
+                    journal.append(key, target.getContent(key));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
             }
-            System.out.println(); // Move to the next row
+            if (!changeListeners.isEmpty()) {
+                changedCells.add(key);
+            }
+        });
+        boolean indexed = cells.isAggregateIndexEnabled();
+        cells = target.fork();
+        dependencies = version.dependencies().fork();
+        cells.setAggregateIndexEnabled(indexed);
+        publish();
+    }
 
-            for (int i = 0; i < maxColumns; i++) {
-                System.out.print("-".repeat(cellWidth) + "+"); //separator line
+    // Publish the cells as they are now to concurrent readers, and tell the listeners what changed
+    private void publish() {
+        if (published != null) {
+            published = cells.freeze();
+        }
+        if (!changedCells.isEmpty()) {
+            Set<String> names = new LinkedHashSet<>();
+            for (long key : changedCells) {
+                names.add(CellStore.name(key));
+            }
+            changedCells.clear();
+            Set<String> changed = Collections.unmodifiableSet(names);
+            for (ChangeListener listener : changeListeners) {
+                listener.cellsChanged(changed);
             }
-            System.out.println();
         }
     }
 
-    // Create a new Spreadsheet
-    public Spreadsheet() {
+    public void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    // The cells readers see: the published version in concurrent mode, the live cells otherwise
+    private CellStore readView() {
+        CellStore version = published;
+        return version != null ? version : cells;
+    }
+
+    private void requireWritable() {
+        if (readOnly) {
+            throw new IllegalStateException("This spreadsheet is a read-only snapshot");
+        }
+    }
+
+    // Recalculate wide dependency levels on this many threads (1, the default, recalculates serially)
+    public synchronized void setRecalculationThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        if (recalculationPool != null) {
+            recalculationPool.shutdown();
+        }
+        recalculationThreads = threads;
+        recalculationPool = threads == 1 ? null : new ForkJoinPool(threads);
+    }
+
+    public int getRecalculationThreads() {
+        return recalculationThreads;
+    }
+
+    // Lazy evaluation: an edit only marks the formulas depending on it stale, and a formula is
+    // evaluated when something reads it (getCellContent, getCellValue, evaluateFormula, a table
+    // view, a formula reading it, or saving values as CSV or a snapshot). The marking stops at
+    // formulas that are stale already, since everything depending on them is stale as well, so
+    // an edit costs about the same however many cells depend on it. Turning it off evaluates
+    // every stale formula.
+    public synchronized void setLazyEvaluation(boolean enabled) {
+        requireWritable();
+        if (!enabled && lazyEvaluation) {
+            evaluatePending();
+            publish();
+        }
+        lazyEvaluation = enabled;
+    }
+
+    public boolean isLazyEvaluation() {
+        return lazyEvaluation;
+    }
+
+    // Report recalculations and cell visits to a monitor, e.g. EvaluationMetrics (null for none)
+    public void setEvaluationMonitor(EvaluationMonitor monitor) {
+        this.monitor = monitor == null ? EvaluationMonitor.NONE : monitor;
+    }
+
+    public EvaluationMonitor getEvaluationMonitor() {
+        return monitor;
     }
 
-    // Generate a key for cell coordinates (e.g., "A1")
-    private String createKey(String column, int row) {
-        return column + row;
+    // Answer SUM/MIN/MAX/AVERAGE over ranges from a per-column index in O(log n) instead of
+    // visiting every cell; costs extra memory per column, so it is off by default
+    public synchronized void setAggregateIndexEnabled(boolean enabled) {
+        requireWritable();
+        cells.setAggregateIndexEnabled(enabled);
+    }
+
+    // Keep cells in fixed-size pages of a memory-mapped scratch file, with only the
+    // maxResidentBlocks blocks (of 1024 rows of a column) used most recently in memory, so a sheet
+    // can hold more numbers than the heap. Reads, edits and evaluation work as before; a block is
+    // read back from its page when it is used. Text and formulas themselves stay on the heap.
+    // Blocks are paged by one thread at a time, so this cannot be combined with concurrent
+    // reads, recalculation runs serially, and forks and snapshots taken from now on share the
+    // page file and have to be used from the same thread. Paging stays on until the JVM exits,
+    // which deletes the file. The undo history so far is dropped.
+    public synchronized void enablePaging(String pageFile, int maxResidentBlocks) throws IOException {
+        requireWritable();
+        if (published != null) {
+            throw new IllegalStateException("Paged storage cannot be combined with concurrent reads");
+        }
+        cells.enablePaging(Path.of(pageFile), maxResidentBlocks);
+        undoVersions.clear(); // versions taken before keep their blocks in memory
+        redoVersions.clear();
+    }
+
+    // Page cache hits, misses, evictions and writes so far, null unless paging is enabled
+    public synchronized CellStore.PagingStatistics getPagingStatistics() {
+        return cells.getPagingStatistics();
+    }
+
+    // Generate a key for cell coordinates (e.g., "A1" -> packed column index and row)
+    private long createKey(String column, int row) {
+        return CellStore.key(CellReference.columnIndex(column), row);
     }
 
     // Set the cell content at a specific coordinate
-    public void setCellContent(String column, int row, String content) {
-        String key = createKey(column, row);
-        Cell cell = cells.getOrDefault(key, new Cell());
-        cell.setContent(content);
-
-        dependencies.remove(key);
-
-        // If content is a formula, find dependencies
-        if (content.startsWith("=")) {
-            String[] tokens = content.substring(1).split("(?=[+*/()-])|(?<=[+*/()-])");
-            for (String token : tokens) {
-                if (token.matches("[A-Z]+\\d+")) {
-                    addDependency(key, token);
+    public synchronized void setCellContent(String column, int row, String content) {
+        requireWritable();
+        long key = createKey(column, row);
+        Cell cell = content == null || content.isEmpty() ? null : compileCell(key, content);
+        if (cell != null) {
+            checkCircularReference(key, cell.getFormula()); // rejected before anything changes
+        }
+        remember(currentVersion());
+        storeCell(key, cell);
+        recalculate(List.of(key));
+        publish();
+    }
+
+    // Apply many edits at once, e.g. a pasted block: keys are cell names like "A1" and an empty
+    // content empties the cell. The dependencies are updated per edited cell and everything
+    // affected is recalculated in one pass, so no half-applied state is ever evaluated.
+    // If the edits create a circular reference, none of them is applied and nothing is evaluated.
+    public synchronized void setCellContents(Map<String, String> contents) {
+        requireWritable();
+        Map<Long, String> edits = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : contents.entrySet()) {
+            edits.put(CellReference.parse(entry.getKey()).getKey(), entry.getValue()); // all names checked up front
+        }
+        Map<Long, String> previous = new HashMap<>();
+        for (long key : edits.keySet()) {
+            previous.put(key, cells.getContent(key));
+        }
+        Version before = currentVersion();
+
+        // The journal gets the batch only once it is known to be applied
+        ChangeJournal batchJournal = journal;
+        journal = null;
+        try {
+            edits.forEach(this::storeContent);
+            try {
+                checkCircularReferences(edits.keySet());
+            } catch (IllegalArgumentException e) {
+                previous.forEach(this::storeContent);
+                recalculate(edits.keySet()); // the restored formulas need their values again
+                changedCells.clear(); // nothing changed in the end
+                throw e;
+            }
+            recalculate(edits.keySet());
+        } finally {
+            journal = batchJournal;
+        }
+        if (journal != null) {
+            try {
+                for (Map.Entry<Long, String> edit : edits.entrySet()) {
+                    journal.append(edit.getKey(), edit.getValue());
                 }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        remember(before);
+        publish();
+    }
+
+    // Store new content and update the dependencies, without recalculating anything
+    private void storeContent(long key, String content) {
+        storeCell(key, content == null || content.isEmpty() ? null : compileCell(key, content));
+    }
+
+    // Compile the content of a cell. A formula copied from another cell, like =A2*B2 in C2 after
+    // =A1*B1 in C1, is not parsed again: it shares the formula compiled for that shape.
+    private Cell compileCell(long key, String content) {
+        FormulaShape shape = FormulaShape.of(content, key);
+        if (shape == null) {
+            return new Cell(content);
+        }
+        Formula formula = sharedFormulas.get(shape.getKey());
+        if (formula == null) {
+            formula = Formula.compileShared(content, key, shape);
+            if (formula == null) {
+                return new Cell(content); // invalid: compiled on its own to keep its error message
             }
+            sharedFormulas.put(shape.getKey(), formula);
         }
+        return new Cell(key, formula);
+    }
 
-        // Save the cell and update dependencies
-        cells.put(key, cell);
+    // Store a plain number, e.g. an imported one, without compiling any text
+    private void storeNumber(long key, double value) {
+        if (journal != null) {
+            try {
+                journal.append(key, CellStore.render(value));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        Cell old = cells.getCell(key);
+        if (old != null) {
+            removeDependencies(key, old.getFormula());
+        }
+        cells.putNumber(key, value);
+    }
 
-        try {
-            updateDependentCells(key);
-        } catch (IllegalArgumentException e) {
-            System.out.println("Circular reference detected while updating: " + key);
-            throw e;
+    // Store a compiled cell (null empties it) and update the dependencies
+    private void storeCell(long key, Cell cell) {
+        if (journal != null) {
+            try {
+                journal.append(key, cell == null ? "" : cell.getContent()); // written ahead of the change itself
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        Cell old = cells.getCell(key);
+        if (old != null) {
+            removeDependencies(key, old.getFormula()); // forget what the old content referred to
+        }
+        if (cell == null) {
+            cells.remove(key);
+        } else {
+            cells.put(key, cell);
+            addDependencies(key, cell.getFormula());
+        }
+    }
+
+    // Reject a formula for a cell if one of the cells it reads already depends on that cell.
+    // Its new edges all point at the cell, so only the cells reachable from it need a look.
+    private void checkCircularReference(long key, Formula formula) {
+        List<CellReference> references = formula.getReferences(key);
+        List<CellRange> ranges = formula.getRanges(key);
+        if (references.isEmpty() && ranges.isEmpty()) {
+            return;
+        }
+        Set<Long> seen = new HashSet<>();
+        Deque<Long> toVisit = new ArrayDeque<>();
+        toVisit.add(key);
+        while (!toVisit.isEmpty()) {
+            long current = toVisit.poll();
+            if (!seen.add(current)) {
+                continue;
+            }
+            if (reads(references, ranges, current)) {
+                throw new IllegalArgumentException("Circular reference detected: " + CellStore.name(current));
+            }
+            toVisit.addAll(dependentsOf(current));
+        }
+    }
+
+    // Reject the stored graph if the cells reachable from the edited ones contain a cycle:
+    // Kahn's algorithm over that part of the graph, without evaluating anything
+    private void checkCircularReferences(Collection<Long> editedKeys) {
+        Set<Long> reachable = new LinkedHashSet<>();
+        Deque<Long> toVisit = new ArrayDeque<>(editedKeys);
+        while (!toVisit.isEmpty()) {
+            long key = toVisit.poll();
+            if (reachable.add(key)) {
+                toVisit.addAll(dependentsOf(key));
+            }
+        }
+        Map<Long, Integer> pending = new HashMap<>();
+        for (long key : reachable) {
+            pending.putIfAbsent(key, 0);
+            for (long dependent : dependentsOf(key)) {
+                pending.merge(dependent, 1, Integer::sum);
+            }
+        }
+        Deque<Long> ready = new ArrayDeque<>();
+        pending.forEach((key, count) -> {
+            if (count == 0) {
+                ready.add(key);
+            }
+        });
+        int done = 0;
+        while (!ready.isEmpty()) {
+            long key = ready.poll();
+            done++;
+            for (long dependent : dependentsOf(key)) {
+                if (pending.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        if (done < reachable.size()) {
+            long cell = editedKeys.stream().filter(key -> pending.get(key) > 0).findFirst()
+                    .orElseGet(() -> reachable.stream().filter(key -> pending.get(key) > 0).findFirst().orElseThrow());
+            throw new IllegalArgumentException("Circular reference detected: " + CellStore.name(cell));
+        }
+    }
+
+    // Whether a formula with these references reads a cell, directly or through a range
+    private static boolean reads(List<CellReference> references, List<CellRange> ranges, long key) {
+        for (CellReference reference : references) {
+            if (reference.getKey() == key) {
+                return true;
+            }
+        }
+        for (CellRange range : ranges) {
+            if (range.contains(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Register the cells the compiled formula refers to
+    private void addDependencies(long key, Formula formula) {
+        for (CellReference reference : formula.getReferences(key)) {
+            addDependency(key, reference.getKey());
+        }
+        for (CellRange range : formula.getRanges(key)) {
+            if (range.size() <= EXPANDED_RANGE_SIZE) {
+                range.forEachKey(rangeKey -> addDependency(key, rangeKey));
+            } else {
+                dependencies().addRange(key, range);
+            }
         }
     }
 
     // Add a dependency between cells
-    private void addDependency(String dependent, String dependency) {
-        dependencies.putIfAbsent(dependency, new HashSet<>());
-        dependencies.get(dependency).add(dependent);
+    private void addDependency(long dependent, long dependency) {
+        dependencies().add(dependent, dependency);
     }
 
-    // Update dependent cells when a cell changes
-    private void updateDependentCells(String cellKey) {
-        if (!dependencies.containsKey(cellKey)) return;
+    // Unregister the cells a previous formula referred to
+    private void removeDependencies(long key, Formula formula) {
+        for (CellReference reference : formula.getReferences(key)) {
+            removeDependency(key, reference.getKey());
+        }
+        for (CellRange range : formula.getRanges(key)) {
+            if (range.size() <= EXPANDED_RANGE_SIZE) {
+                range.forEachKey(rangeKey -> removeDependency(key, rangeKey));
+            } else {
+                dependencies().removeRange(key, range);
+            }
+        }
+    }
+
+    // The cells whose formulas read a cell
+    private Set<Long> dependentsOf(long key) {
+        return dependencies().dependentsOf(key);
+    }
+
+    private void removeDependency(long dependent, long dependency) {
+        dependencies().remove(dependent, dependency);
+    }
+
+    // The dependency graph, with the edges of an opened snapshot added the first time it is needed
+    private DependencyGraph dependencies() {
+        if (pendingDependencies != null) {
+            loadPendingDependencies();
+        }
+        return dependencies;
+    }
 
-        for (String dependent : dependencies.get(cellKey)) {
-            if (visitedCells.contains(dependent)) {
-                throw new IllegalArgumentException("Circular reference detected: " + dependent);
+    private synchronized void loadPendingDependencies() {
+        SpreadsheetSnapshot snapshot = pendingDependencies;
+        if (snapshot != null) {
+            snapshot.loadDependencies(dependencies);
+            pendingDependencies = null;
+        }
+    }
+
+    // Recalculate the edited cells and everything depending on them, each cell exactly once in dependency order.
+    // Returns the cells that could not be recalculated because they are on (or behind) a circular reference.
+    private List<Long> recalculate(Collection<Long> editedKeys) {
+        long start = System.nanoTime();
+        monitor.recalculationStarted(editedKeys.size());
+        Set<Long> dirty = markDirty(editedKeys);
+        if (!changeListeners.isEmpty()) {
+            changedCells.addAll(dirty);
+        }
+        if (lazyEvaluation) {
+            monitor.recalculationFinished(editedKeys.size(), dirty.size(), System.nanoTime() - start);
+            return List.of(); // evaluated when read
+        }
+
+        // For every dirty cell, count how many of the cells it reads are dirty as well
+        Map<Long, Integer> pending = new HashMap<>();
+        for (long key : dirty) {
+            pending.putIfAbsent(key, 0);
+            for (long dependent : dependentsOf(key)) {
+                pending.merge(dependent, 1, Integer::sum);
+            }
+        }
+
+        // Kahn's algorithm, one level at a time: the cells of a level only read cells of
+        // earlier levels, so they can be evaluated independently of each other
+        List<Long> level = new ArrayList<>();
+        for (long key : dirty) {
+            if (pending.get(key) == 0) {
+                level.add(key);
+            }
+        }
+        Evaluation evaluation = new Evaluation(cells, true); // shared by the levels, so it remembers failed cells
+        while (!level.isEmpty()) {
+            recalculateLevel(level, evaluation);
+            List<Long> nextLevel = new ArrayList<>();
+            for (long key : level) {
+                for (long dependent : dependentsOf(key)) {
+                    if (pending.merge(dependent, -1, Integer::sum) == 0) {
+                        nextLevel.add(dependent);
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+
+        // Cells that never became ready are on (or behind) a circular reference
+        List<Long> circular = new ArrayList<>();
+        for (long key : dirty) {
+            if (pending.get(key) > 0) {
+                cells.invalidate(key);
+                circular.add(key);
+                monitor.circularReference(key);
+            }
+        }
+        monitor.recalculationFinished(editedKeys.size(), dirty.size(), System.nanoTime() - start);
+        return circular;
+    }
+
+    // Recalculate the cells of one dependency level, in parallel when it is large enough
+    private void recalculateLevel(List<Long> level, Evaluation evaluation) {
+        if (recalculationPool == null || level.size() < PARALLEL_LEVEL_SIZE || cells.isPaging()) {
+            for (long key : level) {
+                recalculateCell(key, evaluation);
+            }
+            return;
+        }
+
+        // Workers only read the store: every cell they need belongs to an earlier level.
+        // Their results are written back, and failures reported, afterwards on this thread.
+        cells.materializeAll(); // decoding snapshot blocks on first use would write to the store
+        int size = level.size();
+        double[] values = new double[size];
+        String[] errors = new String[size];
+        boolean[] evaluated = new boolean[size];
+        int chunk = Math.max(PARALLEL_LEVEL_SIZE / 4, (size + recalculationThreads * 4 - 1) / (recalculationThreads * 4));
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int start = 0; start < size; start += chunk) {
+            int from = start;
+            int to = Math.min(size, start + chunk);
+            tasks.add(() -> {
+                Evaluation worker = evaluation.forWorker();
+                for (int i = from; i < to; i++) {
+                    long key = level.get(i);
+                    if (!cells.isFormula(key) || cells.hasValue(key)) {
+                        continue;
+                    }
+                    try {
+                        values[i] = worker.evaluate(key, cells.getCell(key).getFormula());
+                        evaluated[i] = true;
+                    } catch (IllegalArgumentException e) {
+                        errors[i] = e.getMessage();
+                    }
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> future : recalculationPool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Recalculation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Recalculation failed", e.getCause());
+        }
+
+        for (int i = 0; i < size; i++) {
+            long key = level.get(i);
+            if (evaluated[i]) {
+                cells.setValue(key, values[i]);
+            } else if (errors[i] != null) {
+                cells.invalidate(key);
+                evaluation.failed(key, errors[i]);
+                monitor.cellFailed(key, errors[i]); // on this thread, like the serial path
+            }
+        }
+    }
+
+    // Mark the edited cells and all of their transitive dependents dirty,
+    // invalidating their cached values so no read can see a stale result.
+    // With lazy evaluation, a formula that is stale already is left out with its dependents:
+    // they were marked when it became stale, and nothing has evaluated them since.
+    private Set<Long> markDirty(Collection<Long> editedKeys) {
+        Set<Long> dirty = new LinkedHashSet<>();
+        Deque<Long> toVisit = new ArrayDeque<>();
+        for (long key : editedKeys) {
+            if (dirty.add(key)) {
+                cells.invalidate(key);
+                toVisit.addAll(dependentsOf(key));
+            }
+        }
+        while (!toVisit.isEmpty()) {
+            long key = toVisit.poll();
+            if (lazyEvaluation && !dirty.contains(key) && cells.isFormula(key) && !cells.hasValue(key)) {
+                continue;
             }
+            if (dirty.add(key)) {
+                cells.invalidate(key);
+                toVisit.addAll(dependentsOf(key));
+            }
+        }
+        return dirty;
+    }
 
-            Cell cell = cells.get(dependent);
-            if (cell != null && cell.getContent().startsWith("=")) {
-                double newValue = evaluateFormula(cell.getContent(), dependent);
-                cell.setEvaluatedValue(newValue);
-                updateDependentCells(dependent);
+    // Evaluate and cache every formula lazy edits left stale, e.g. before its value is saved.
+    // Formulas that fail stay stale, as they do after a recalculation.
+    private void evaluatePending() {
+        List<Long> stale = new ArrayList<>();
+        cells.forEachKey(key -> {
+            if (cells.isFormula(key) && !cells.hasValue(key)) {
+                stale.add(key);
+            }
+        });
+        Evaluation evaluation = new Evaluation(cells, true); // remembers failed cells, so each fails once
+        for (long key : stale) {
+            try {
+                evaluation.valueOf(key);
+            } catch (IllegalArgumentException e) {
+                // shown as entered, like any formula that cannot be evaluated
             }
         }
     }
 
+    // Evaluate a single formula cell and cache its value (numbers are their own value, text has none)
+    private void recalculateCell(long key, Evaluation evaluation) {
+        if (!cells.isFormula(key) || cells.hasValue(key)) {
+            return; // not a formula, or already recalculated by a read that needed it
+        }
+        try {
+            cells.setValue(key, evaluation.evaluate(key, cells.getCell(key).getFormula()));
+        } catch (IllegalArgumentException e) {
+            cells.invalidate(key);
+            evaluation.failed(key, e.getMessage());
+            monitor.cellFailed(key, e.getMessage());
+        }
+    }
+
     // Get the cell content at a specific coordinate
     public String getCellContent(String column, int row) {
-        String key = createKey(column, row);
-        Cell cell = cells.get(key);
-        if (cell == null || cell.getContent().isEmpty()) {
-            return "0"; // Empty cells default to 0
-        }
-        if (cell.getEvaluatedValue() != null) {
-            return String.format("%.1f", cell.getEvaluatedValue());
-        }
-        return cell.getContent();
-    }
-
-    // Parse ranges with multiple parts (e.g., A1:B2,10)
-    private List<Double> parseMultipleRanges(String ranges) {
-        List<Double> values = new ArrayList<>();
-        String[] rangeParts = ranges.split(",");
-        for (String range : rangeParts) {
-            range = range.trim();
-            if (range.matches("\\d+(\\.\\d+)?")) { // Check if it’s a number
-                values.add(Double.parseDouble(range));
-            } else if (range.matches("[A-Z]+\\d+:[A-Z]+\\d+")) {  // Range A1:B2
-                values.addAll(parseRange(range));
-            } else {
-                throw new IllegalArgumentException("Invalid range: " + range);
+        return display(createKey(column, row));
+    }
+
+    // The same by column index (0 for A), e.g. for views walking many cells.
+    // The string is formatted once per value, so reading a cell again allocates nothing.
+    public String getCellContent(int column, int row) {
+        return display(CellStore.key(column, row));
+    }
+
+    // Whether a cell has no content; getCellContent shows such a cell as "0"
+    public boolean isCellEmpty(int column, int row) {
+        return readView().isEmpty(CellStore.key(column, row));
+    }
+
+    // What getCellContent shows. With lazy evaluation a stale formula is evaluated first: on the
+    // live cells its value is cached, while a shared version only has the result formatted.
+    private String display(long key) {
+        CellStore view = readView();
+        if (lazyEvaluation && view.isFormula(key) && !view.hasValue(key)) {
+            if (cachesLazyValues(view)) {
+                return displayLive(key);
+            }
+            try {
+                return String.format("%.1f", new Evaluation(view, false).valueOf(key));
+            } catch (IllegalArgumentException e) {
+                // shown as entered, like any formula that cannot be evaluated
             }
         }
-
-        return values;
+        return view.getDisplay(key);
     }
-    // Extract range from formula like MAX(A1:B2)
-    private String extractRange(String formula, String functionName) {
-        if (!formula.startsWith(functionName + "(") || !formula.endsWith(")")) {
-            throw new IllegalArgumentException("Invalid formula: " + formula);
+
+    // Evaluate a stale formula of the live cells and cache its value, under the lock writers
+    // hold, so the cached values never mix with an edit in progress
+    private synchronized String displayLive(long key) {
+        if (cells.isFormula(key) && !cells.hasValue(key)) {
+            try {
+                new Evaluation(cells, true).valueOf(key);
+            } catch (IllegalArgumentException e) {
+                // shown as entered, like any formula that cannot be evaluated
+            }
         }
-        return formula.substring(functionName.length() + 1, formula.length() - 1).trim();
+        return cells.getDisplay(key);
     }
 
+    // Value of a cell as formulas read it: a number, a formula's result, or 0 for an empty cell.
+    // Text and failing formulas throw IllegalArgumentException with the reason.
+    public double getCellValue(String column, int row) {
+        long key = createKey(column, row);
+        CellStore view = readView();
+        if (cachesLazyValues(view)) {
+            return liveValue(key);
+        }
+        return new Evaluation(view, false).valueOf(key);
+    }
 
     // Evaluate a formula
     public double evaluateFormula(String formula, String currentCell) {
-        if (visitedCells.contains(currentCell)) {
-            //System.out.println("Circular reference detected while visiting: " + currentCell);
-            throw new IllegalArgumentException("Circular reference detected: " + currentCell);
+        long key = CellReference.parse(currentCell).getKey();
+        CellStore view = readView();
+        if (cachesLazyValues(view)) {
+            return evaluateLive(formula, key);
         }
+        // Published versions are shared by readers, so evaluations there leave the cache alone
+        return evaluate(new Evaluation(view, false), formula, key);
+    }
+
+    // Whether reading from a view caches the values of stale formulas it evaluates: only the
+    // live cells of a lazy sheet do, and only under the lock writers hold (see liveValue)
+    private boolean cachesLazyValues(CellStore view) {
+        return lazyEvaluation && view == cells && !readOnly;
+    }
+
+    // The value of a cell of the live cells, caching the stale formulas it needs
+    private synchronized double liveValue(long key) {
+        return new Evaluation(cells, true).valueOf(key);
+    }
+
+    private synchronized double evaluateLive(String formula, long key) {
+        return evaluate(new Evaluation(cells, true), formula, key);
+    }
 
-        visitedCells.add(currentCell); // Mark cell as visited
-        System.out.println("Visiting cell: " + currentCell);
-     try {
-        if (formula == null || formula.isEmpty()) {
-            throw new IllegalArgumentException("The cell does not exist or is empty.");
+    private double evaluate(Evaluation evaluation, String formula, long key) {
+        if (formula != null && !formula.isEmpty() && formula.equals(evaluation.store.getContent(key))) {
+            return evaluation.valueOf(key); // the cell's own content: reuse its compiled formula and cached value
         }
+        return evaluation.evaluate(key, Formula.compile(formula));
+    }
+
+    // State of one evaluation: the cells it is currently inside of, for circular reference
+    // detection, and what it learned about stale cells. Every evaluation has its own, so several
+    // of them can run at the same time. Stale cells are evaluated with an explicit stack, so
+    // the Java stack stays shallow however long a chain of references is.
+    private final class Evaluation implements EvaluationContext {
+        private final Set<Long> visitedCells = new HashSet<>(); // For circular reference detection
+        private final CellStore store; // the cells it reads: the live store, or a published version
+        private final boolean cacheResults; // store values of stale cells it had to evaluate
+        private final Map<Long, Double> values = new HashMap<>(); // values of stale cells, when not cached in the store
+        private final Map<Long, String> errors; // stale cells whose evaluation failed, with the message
+        private long currentCell; // cell whose formula is being evaluated
 
-         // If not a formula, try parsing as a number
-        if (!formula.startsWith("=")) {
+        Evaluation(CellStore store, boolean cacheResults) {
+            this(store, cacheResults, new HashMap<>());
+        }
+
+        private Evaluation(CellStore store, boolean cacheResults, Map<Long, String> errors) {
+            this.store = store;
+            this.cacheResults = cacheResults;
+            this.errors = errors;
+        }
+
+        // A read-only evaluation for a worker thread that knows the failures found so far
+        Evaluation forWorker() {
+            return new Evaluation(store, false, new HashMap<>(errors));
+        }
+
+        // Remember that a cell failed, so reading it again fails without evaluating it again
+        void failed(long cellKey, String message) {
+            errors.put(cellKey, message);
+        }
+
+        // Evaluate a compiled formula on behalf of a cell
+        double evaluate(long cellKey, Formula formula) {
+            if (visitedCells.contains(cellKey)) {
+                throw new IllegalArgumentException("Circular reference detected: " + CellStore.name(cellKey));
+            }
+
+            visitedCells.add(cellKey); // Mark cell as visited
+            monitor.cellVisited(cellKey);
+            long outerCell = currentCell;
+            currentCell = cellKey;
             try {
-                return Double.parseDouble(formula); // If not a formula, return the numeric value
-            } catch (NumberFormatException e) {
-                throw new IllegalArgumentException("Invalid value: " + formula);
-            }
-        }
-        formula = formula.substring(1);
-
-        // Function (MAX, MIN, SUM, AVERAGE)
-        if (formula.startsWith("MAX(")) {
-            String range = extractRange(formula, "MAX");
-            List<Double> rangeValues = parseMultipleRanges(range);
-            return rangeValues.stream().max(Double::compare).orElseThrow(() -> new IllegalArgumentException("Empty range."));
-        } else if (formula.startsWith("MIN(")) {
-            String range = extractRange(formula, "MIN");
-            List<Double> rangeValues = parseMultipleRanges(range);
-            return rangeValues.stream().min(Double::compare).orElseThrow(() -> new IllegalArgumentException("Empty range."));
-        } else if (formula.startsWith("SUM(")) {
-            String range = extractRange(formula, "SUM");
-            List<Double> rangeValues = parseMultipleRanges(range);
-            return rangeValues.stream().mapToDouble(Double::doubleValue).sum();
-        } else if (formula.startsWith("AVERAGE(")) {
-            String range = extractRange(formula, "AVERAGE");
-            List<Double> rangeValues = parseMultipleRanges(range);
-            return rangeValues.stream().mapToDouble(Double::doubleValue).average().orElseThrow(() -> new IllegalArgumentException("Empty range."));
-        }
-
-        //basic operators (+, -, *, /)
-        String[] tokens = formula.split("(?<=[-+*/])|(?=[-+*/])");
-        Stack<Double> values = new Stack<>();
-        Stack<String> operators = new Stack<>();
-
-        for (String token : tokens) {
-            if (token.matches("\\d+")) { //number
-                values.push(Double.parseDouble(token));
-            } else if (token.matches("[+\\-*/]")) { //operator
-                while (!operators.isEmpty() && precedence(token) <= precedence(operators.peek())) {
-                    values.push(applyOperator(operators.pop(), values.pop(), values.pop()));
-                }
-                operators.push(token);
-            } else if (token.matches("[A-Z]+\\d+")) { //reference
-                String refColumn = token.replaceAll("\\d", "");
-                int refRow = Integer.parseInt(token.replaceAll("\\D", ""));
-                String cellContent = getCellContent(refColumn, refRow);
-                values.push(evaluateFormula(cellContent, refColumn + refRow));
-            } else {
-                throw new IllegalArgumentException("Invalid token in formula: " + token);
+                return formula.evaluate(this);
+            } finally {
+                currentCell = outerCell;
+                visitedCells.remove(cellKey); //clear visited mark
+                monitor.cellFinished(cellKey);
             }
         }
 
-        while (!operators.isEmpty()) {
-            values.push(applyOperator(operators.pop(), values.pop(), values.pop()));
+        @Override
+        public long currentCell() {
+            return currentCell;
         }
-        return values.pop();
-    } finally {
-         visitedCells.remove(currentCell); //clear visited mark
-         System.out.println("Finished visiting cell: " + currentCell);
-    }
-}
 
-    // Parse a range of cells like a1:b1
-    private List<Double> parseRange(String range) {
-        List<Double> values = new ArrayList<>();
-        String[] parts = range.split(":");
+        @Override
+        public double valueOf(CellReference reference) {
+            return valueOf(reference.getKey());
+        }
 
-        if (parts.length != 2) {
-            throw new IllegalArgumentException("Invalid range: " + range);
+        // Value of a referenced cell (empty cells count as 0). A valid cached value is
+        // returned as is; only a stale cell is evaluated, and its result is cached
+        @Override
+        public double valueOf(long cellKey) {
+            if (visitedCells.contains(cellKey)) {
+                throw new IllegalArgumentException("Circular reference detected: " + CellStore.name(cellKey));
+            }
+            if (store.hasValue(cellKey)) {
+                return store.getValue(cellKey);
+            }
+            if (store.isEmpty(cellKey)) {
+                return 0;
+            }
+            if (!store.isFormula(cellKey)) {
+                return evaluate(cellKey, store.getCell(cellKey).getFormula()); // text: fails with its "Invalid value"
+            }
+            if (!isSettled(cellKey)) {
+                evaluateStale(cellKey);
+            }
+            String error = errors.get(cellKey);
+            if (error != null) {
+                throw new IllegalArgumentException(error);
+            }
+            Double value = values.get(cellKey);
+            return value != null ? value : store.getValue(cellKey);
         }
 
-        String start = parts[0];
-        String end = parts[1];
+        // Evaluate a stale formula cell after the stale cells it reads, deepest first, using
+        // an explicit stack instead of recursion. Every cell ends up with a value or an error.
+        private void evaluateStale(long target) {
+            Deque<Long> stack = new ArrayDeque<>();
+            Set<Long> expanded = new HashSet<>(); // cells whose stale inputs have been pushed
+            stack.push(target);
+            while (!stack.isEmpty()) {
+                long key = stack.peek();
+                if (isSettled(key)) {
+                    stack.pop(); // pushed twice, and already done
+                } else if (expanded.add(key)) {
+                    Formula formula = store.getCell(key).getFormula();
+                    for (CellReference reference : formula.getReferences(key)) {
+                        pushStale(reference.getKey(), stack, expanded);
+                    }
+                    for (CellRange range : formula.getRanges(key)) {
+                        store.forEachKey(range, rangeKey -> pushStale(rangeKey, stack, expanded));
+                    }
+                } else {
+                    stack.pop(); // everything it reads is settled now
+                    try {
+                        double value = evaluate(key, store.getCell(key).getFormula());
+                        if (cacheResults) {
+                            store.setValue(key, value);
+                        } else {
+                            values.put(key, value);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        errors.put(key, e.getMessage());
+                    }
+                }
+            }
+        }
 
-        String startColumn = start.replaceAll("\\d", ""); //colum letter
-        int startRow = Integer.parseInt(start.replaceAll("\\D", "")); //row number
-        String endColumn = end.replaceAll("\\d", "");
-        int endRow = Integer.parseInt(end.replaceAll("\\D", ""));
+        private void pushStale(long key, Deque<Long> stack, Set<Long> expanded) {
+            if (isSettled(key) || !store.isFormula(key)) {
+                return; // nothing to evaluate first (text fails when it is read)
+            }
+            if (expanded.contains(key) || visitedCells.contains(key)) {
+                // still waiting for its own inputs, so it reads itself through this cell
+                throw new IllegalArgumentException("Circular reference detected: " + CellStore.name(key));
+            }
+            stack.push(key);
+        }
 
-        for (char col = startColumn.charAt(0); col <= endColumn.charAt(0); col++) {
-            for (int row = startRow; row <= endRow; row++) {
-                String cellKey = String.valueOf(col) + row;
-                String content = getCellContent(String.valueOf(col), row);
+        // Whether a cell can be read without evaluating anything
+        private boolean isSettled(long key) {
+            return store.hasValue(key) || store.isEmpty(key) || values.containsKey(key) || errors.containsKey(key);
+        }
 
-                if (visitedCells.contains(cellKey)) {
-                    throw new IllegalArgumentException("Circular reference detected: " + cellKey);
+        // Add every cell of a range like A1:B2 to a function's aggregate
+        @Override
+        public void aggregate(CellRange range, Aggregate aggregate) {
+            for (long visited : visitedCells) {
+                if (range.contains(visited)) {
+                    throw new IllegalArgumentException("Circular reference detected: " + CellStore.name(visited));
                 }
+            }
+            if (store.aggregate(range, aggregate)) {
+                return; // answered by the aggregate index
+            }
+            long covered;
+            if (!monitor.observesRangeCellReads()) {
+                // Current values are reduced straight from the column arrays; the rest is evaluated
+                covered = store.aggregateValues(range, aggregate, cellKey -> aggregate.add(valueOf(cellKey)));
+            } else {
+                // A monitor sees every cell read, so only the occupied cells are read one by one
+                covered = store.forEachKey(range, cellKey -> {
+                    double evaluated = valueOf(cellKey);
+                    monitor.rangeCellRead(cellKey, evaluated);
+                    aggregate.add(evaluated);
+                });
+            }
+            if (covered < range.size()) {
+                aggregate.addAll(0, 0, 0, range.size() - covered); // the empty cells all count as 0
+            }
+        }
+    }
 
-                if (content != null && !content.isEmpty()) {
-                    double evaluated = evaluateFormula(content, cellKey);
-                    System.out.println("Evaluated content for cell " + cellKey + ": " + evaluated);
-                    values.add(evaluated);
+    // Pass every non-empty cell to an action with its name and content, e.g. ("A1", "=B1+2")
+    public void forEachCell(BiConsumer<String, String> action) {
+        CellStore view = readView();
+        view.forEachKey(key -> action.accept(CellStore.name(key), view.getContent(key)));
+    }
+
+    public void showSpreadsheet() {
+        CellStore view = readView();
+        view.forEachKey(key ->
+                System.out.println("Coordinates: " + CellStore.name(key) + " | Content: " + view.getContent(key)));
+    }
+
+
+    // Save the spreadsheet to a file
+    public void saveSpreadsheet(String filename) throws IOException {
+        CellStore view = readView();
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
+            view.forEachKey(key -> {
+                try {
+                    writer.write(CellStore.name(key) + ";" + view.getContent(key));
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Write the values of the spreadsheet as CSV: a line per row from row 1 and a field per
+    // column from A, up to the last ones in use. Numbers and formula results are written as
+    // values, text as entered and formulas that fail as #ERROR. Cells are streamed as they are read.
+    public void exportCsv(String filename) throws IOException {
+        if (lazyEvaluation && !readOnly) {
+            synchronized (this) {
+                evaluatePending();
+                publish();
             }
         }
-        return values;
+        CsvFile.write(readView(), filename);
     }
 
-    // Operator precedence
-    private int precedence(String operator) {
-        return switch (operator) {
-            case "+", "-" -> 1;
-            case "*", "/" -> 2;
-            default -> -1;
-        };
+    // Save the spreadsheet as a binary snapshot: compiled formulas, cached values and the
+    // dependency graph are stored, so opening it needs no parsing or recalculation
+    public synchronized void saveSnapshot(String filename) throws IOException {
+        requireWritable(); // a read-only version has no dependency graph to store
+        if (lazyEvaluation) {
+            evaluatePending();
+            publish();
+        }
+        SpreadsheetSnapshot.write(cells, dependencies(), filename);
+    }
+
+    // Open a spreadsheet from a binary snapshot. The file is memory-mapped and cells are
+    // decoded block by block when they are first used; the dependency graph is only rebuilt
+    // by the first edit (or fork, undo step or save), so reading needs neither.
+    public static Spreadsheet openSnapshot(String filename) throws IOException {
+        SpreadsheetSnapshot snapshot = SpreadsheetSnapshot.open(filename);
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.cells.attachSnapshot(snapshot);
+        spreadsheet.pendingDependencies = snapshot;
+        return spreadsheet;
     }
 
-    // Apply an operator to two values
-    private double applyOperator(String operator, double b, double a) {
-        return switch (operator) {
-            case "+" -> a + b;
-            case "-" -> a - b;
-            case "*" -> a * b;
-            case "/" -> a / b;
-            default -> 0;
+    // Open a journaled spreadsheet: the snapshot (if it exists) with the journal of later edits
+    // replayed on top of it. From then on every edit is appended to the journal, so saving
+    // costs as much as the edits made since the last save, whatever the size of the sheet.
+    public static Spreadsheet openJournaled(String snapshotFile, String journalFile) throws IOException {
+        Spreadsheet spreadsheet = Files.exists(Path.of(snapshotFile)) ? openSnapshot(snapshotFile) : new Spreadsheet();
+        Path compacting = Path.of(journalFile + ".compacting");
+        boolean interruptedCompaction = Files.exists(compacting);
+        Set<Long> replayedKeys = new LinkedHashSet<>();
+        ChangeJournal.Replay replay = (key, content) -> {
+            spreadsheet.storeContent(key, content);
+            replayedKeys.add(key);
         };
+        // Replaying a record twice is harmless, so an interrupted compaction is simply replayed again
+        ChangeJournal.replay(compacting, replay);
+        ChangeJournal.replay(Path.of(journalFile), replay);
+        spreadsheet.recalculate(replayedKeys);
+        if (interruptedCompaction) {
+            spreadsheet.saveSnapshot(snapshotFile);
+            Files.delete(compacting);
+        }
+        spreadsheet.journal = ChangeJournal.open(journalFile);
+        spreadsheet.journalSnapshot = snapshotFile;
+        return spreadsheet;
     }
-    public void showSpreadsheet() {
-        for (String key : cells.keySet()) {
-            System.out.println("Coordinates: " + key + " | Content: " + cells.get(key));
+
+    // Make every edit so far durable by forcing the journal to disk
+    public synchronized void saveChanges() throws IOException {
+        requireJournal().sync();
+    }
+
+    // Start folding the journal into a fresh snapshot in the background. New edits go to a new
+    // journal right away; the old one is deleted once the snapshot holding its edits is in place.
+    public synchronized Future<?> compactJournal() throws IOException {
+        requireJournal();
+        waitForCompaction();
+        Path journalPath = journal.getPath();
+        Path compacting = Path.of(journalPath + ".compacting");
+        if (Files.exists(compacting)) {
+            throw new IOException("An earlier journal compaction did not finish: " + compacting);
+        }
+        journal.close();
+        Files.move(journalPath, compacting, StandardCopyOption.ATOMIC_MOVE);
+        journal = ChangeJournal.open(journalPath.toString());
+
+        String snapshotFile = journalSnapshot;
+        if (compactionExecutor == null) {
+            compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "journal-compaction");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
+        // Works on its own copy of the sheet, rebuilt from the files, so editing can go on meanwhile
+        compaction = compactionExecutor.submit(() -> {
+            Spreadsheet folded = Files.exists(Path.of(snapshotFile)) ? openSnapshot(snapshotFile) : new Spreadsheet();
+            Set<Long> replayedKeys = new LinkedHashSet<>();
+            ChangeJournal.replay(compacting, (key, content) -> {
+                folded.storeContent(key, content);
+                replayedKeys.add(key);
+            });
+            folded.recalculate(replayedKeys);
+            folded.saveSnapshot(snapshotFile);
+            Files.delete(compacting);
+            return null;
+        });
+        return compaction;
     }
 
+    // Sync and close the journal, after any running compaction has finished
+    public synchronized void closeJournal() throws IOException {
+        requireJournal();
+        try {
+            waitForCompaction();
+        } finally {
+            journal.close();
+            journal = null;
+            if (compactionExecutor != null) {
+                compactionExecutor.shutdown();
+                compactionExecutor = null;
+            }
+        }
+    }
 
-    // Save the spreadsheet to a file
-    public void saveSpreadsheet(String filename) throws IOException {
-        BufferedWriter writer = new BufferedWriter(new FileWriter(filename));
-        for (String key : cells.keySet()) {
-            Cell cell = cells.get(key);
-            writer.write(key + ";" + cell.getContent());
-            writer.newLine();
+    private ChangeJournal requireJournal() {
+        if (journal == null) {
+            throw new IllegalStateException("The spreadsheet is not journaled");
         }
-        writer.close();
+        return journal;
     }
 
-    // Load the spreadsheet from a file
-    public void loadSpreadsheet(String filename) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(filename));
-        String line;
-        while ((line = reader.readLine()) != null) {
-            // Skip empty lines or invalid lines
-            if (line.trim().isEmpty() || !line.contains(";")) {
+    private void waitForCompaction() throws IOException {
+        if (compaction == null) {
+            return;
+        }
+        try {
+            compaction.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for journal compaction");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException("Journal compaction failed", e.getCause());
+        } finally {
+            compaction = null;
+        }
+    }
 
-                System.out.println("Invalid line format: " + line);
-                continue;
-            }
+    // Load the spreadsheet from a file. All lines are stored first and the loaded cells are
+    // recalculated once at the end, so forward references see the complete sheet.
+    public synchronized LoadStatistics loadSpreadsheet(String filename) throws IOException {
+        requireWritable();
+        long start = System.nanoTime();
+        long lines = 0;
+        Set<Long> loadedKeys = new LinkedHashSet<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(filename), LOAD_BUFFER_SIZE)) {
+            remember(currentVersion());
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                // Skip empty lines or invalid lines
+                int separatorIndex = line.indexOf(';');
+                if (line.isBlank() || separatorIndex == -1) {
+                    System.out.println("Invalid line format: " + line);
+                    continue;
+                }
+                String key = line.substring(0, separatorIndex).trim();
+                String content = line.substring(separatorIndex + 1).trim();
 
-            int separatorIndex = line.indexOf(';');
-            if (separatorIndex == -1) {
-                System.out.println("Invalid line format: " + line);
-                continue;
+                // Extract column and row from the key, e.g. "D1"
+                CellReference reference;
+                try {
+                    reference = CellReference.parse(key);
+                } catch (IllegalArgumentException e) {
+                    System.out.println("Invalid cell reference: " + key);
+                    continue;
+                }
+
+                // Store the content; recalculation waits until the whole file is read
+                storeContent(reference.getKey(), content);
+                loadedKeys.add(reference.getKey());
             }
-            String key = line.substring(0, separatorIndex).trim();
-            String content = line.substring(separatorIndex + 1).trim();
+        }
+        recalculate(loadedKeys);
+        publish();
+        return new LoadStatistics(lines, loadedKeys.size(), System.nanoTime() - start);
+    }
+
+    // Import a CSV file with its first field in A1
+    public LoadStatistics importCsv(String filename) throws IOException {
+        return importCsv(filename, "A1");
+    }
 
-            if (!key.matches("[A-Z]+\\d+")) { // "D1"
-                System.out.println("Invalid cell reference: " + key);
+    // Import a CSV file onto the grid: the first field of the first line goes to firstCell, the
+    // fields after it to the columns on its right, and the lines after it to the rows below.
+    // Empty fields empty their cell. The file is parsed in parallel chunks (see CsvFile) and
+    // everything imported is recalculated once at the end. Returns the lines read and the cells changed.
+    public synchronized LoadStatistics importCsv(String filename, String firstCell) throws IOException {
+        requireWritable();
+        long start = System.nanoTime();
+        CellReference first = CellReference.parse(firstCell);
+        int firstColumn = CellStore.columnOf(first.getKey());
+        int firstRow = first.getRow();
+        Version before = currentVersion();
+        Set<Long> recalculated = new LinkedHashSet<>();
+        long[] fields = new long[1];
+        int lines;
+        try {
+            lines = CsvFile.read(filename, (rows, rowOffset) ->
+                    fields[0] += storeImported(rows, firstColumn, firstRow + rowOffset, recalculated));
+        } finally {
+            recalculate(recalculated); // what was stored before a failure is calculated all the same
+            remember(before);
+            publish();
+        }
+        return new LoadStatistics(lines, fields[0], System.nanoTime() - start);
+    }
+
+    // Store the fields of imported rows, the first one of them at (firstColumn, firstRow).
+    // Returns the number of cells changed.
+    private int storeImported(CsvFile.Rows rows, int firstColumn, int firstRow, Set<Long> recalculated) {
+        int changed = 0;
+        for (int i = 0; i < rows.size; i++) {
+            long position = rows.positions[i];
+            long key = CellStore.key(firstColumn + CellStore.columnOf(position), firstRow + CellStore.rowOf(position));
+            String text = rows.texts[i];
+            if (text == null) {
+                storeNumber(key, rows.numbers[i]);
+            } else if (!text.isEmpty()) {
+                storeContent(key, text);
+            } else if (!cells.isEmpty(key)) {
+                storeCell(key, null);
+            } else {
                 continue;
             }
-            // Extract column and row from the key
-            String column = key.replaceAll("\\d", ""); //column
-            String rowString = key.replaceAll("\\D", ""); // row
-            if (column.isEmpty() || rowString.isEmpty()) {
-                System.out.println("Invalid cell reference in line: " + line);
-                continue;
+            changed++;
+            // Only formulas and cells that something reads need a look from the recalculation
+            if (cells.isFormula(key) || !dependentsOf(key).isEmpty()) {
+                recalculated.add(key);
+            } else if (!changeListeners.isEmpty()) {
+                changedCells.add(key);
             }
-
-            int row = Integer.parseInt(rowString);
-
-            // Set the content in the spreadsheet
-            setCellContent(column, row, content);
         }
-        reader.close();
+        return changed;
     }
 }
-
@@ -0,0 +1,277 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A local TCP server sharing one live Spreadsheet between clients, with one virtual thread per
+// connection. The protocol is line based (UTF-8) with one reply line per request:
+//   set A1 =B1+2   -> ok | error MESSAGE
+//   get A1         -> ok CONTENT (as getCellContent shows it)
+//   eval A1        -> ok VALUE
+//   batch          -> then lines like "A1 =B1+2" and a line "end"; applied all or nothing
+//   subscribe      -> ok, followed by "changed A1 B1 ..." lines whenever a write changes cells
+//   quit
+// Reads are served without locks from the last published version. Writes of all clients go
+// through one queue: the writer applies whatever is waiting as one batch, so concurrent sets
+// share a recalculation, and each client gets its reply once its write is visible.
+public final class SpreadsheetServer implements Closeable {
+    private static final int MAX_BATCH = 4096; // writes applied together at most
+    private static final int MAX_PENDING_NOTIFICATIONS = 1024; // a subscriber further behind is disconnected
+
+    private final Spreadsheet spreadsheet;
+    private final ServerSocket serverSocket;
+    private final ExecutorService sessions = Executors.newVirtualThreadPerTaskExecutor();
+    private final Set<Session> openSessions = ConcurrentHashMap.newKeySet();
+    private final BlockingQueue<Write> writes = new LinkedBlockingQueue<>();
+    private final Thread acceptor;
+    private final Thread writer;
+    private volatile boolean closed;
+    private final AtomicLong acceptFailures = new AtomicLong(); // connections that could not be accepted
+    private volatile IOException lastAcceptFailure;
+
+    // The edits of one set or batch request, applied together, and the reply for its client
+    private record Write(Map<String, String> edits, CompletableFuture<String> reply) {
+    }
+
+    // Serve a spreadsheet on localhost; port 0 picks a free port (see getPort)
+    public SpreadsheetServer(Spreadsheet spreadsheet, int port) throws IOException {
+        this.spreadsheet = spreadsheet;
+        spreadsheet.setConcurrentReads(true);
+        spreadsheet.addChangeListener(this::notifySubscribers);
+        serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        acceptor = Thread.ofVirtual().name("spreadsheet-acceptor").start(this::acceptConnections);
+        writer = Thread.ofPlatform().name("spreadsheet-writer").daemon().start(this::applyWrites);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    // Connections that could not be accepted so far; the server goes on accepting others
+    public long getAcceptFailures() {
+        return acceptFailures.get();
+    }
+
+    // Why the last connection could not be accepted, or null
+    public IOException getLastAcceptFailure() {
+        return lastAcceptFailure;
+    }
+
+    // Wait until the server is closed
+    public void join() throws InterruptedException {
+        acceptor.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        writer.interrupt();
+        for (Session session : openSessions) {
+            session.disconnect();
+        }
+        sessions.shutdownNow();
+        Write write;
+        while ((write = writes.poll()) != null) {
+            write.reply().complete("error Server closed");
+        }
+    }
+
+    private void acceptConnections() {
+        while (!closed) {
+            try {
+                sessions.execute(new Session(serverSocket.accept()));
+            } catch (IOException e) {
+                if (!closed) {
+                    lastAcceptFailure = e;
+                    acceptFailures.incrementAndGet();
+                }
+            } catch (RejectedExecutionException e) {
+                return; // closed meanwhile
+            }
+        }
+    }
+
+    // The single writer: takes every write waiting in the queue and applies it in one batch
+    private void applyWrites() {
+        List<Write> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                batch.add(writes.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            writes.drainTo(batch, MAX_BATCH - 1);
+            Map<String, String> edits = new LinkedHashMap<>();
+            for (Write write : batch) {
+                for (Map.Entry<String, String> edit : write.edits().entrySet()) {
+                    edits.remove(edit.getKey()); // a cell written twice keeps the later content
+                    edits.put(edit.getKey(), edit.getValue());
+                }
+            }
+            try {
+                spreadsheet.setCellContents(edits);
+                batch.forEach(write -> write.reply().complete("ok"));
+            } catch (IllegalArgumentException e) {
+                // Refused as a whole (a bad name or a circular reference) with nothing applied:
+                // each write is applied on its own, so only the offending ones fail
+                for (Write write : batch) {
+                    try {
+                        spreadsheet.setCellContents(write.edits());
+                        write.reply().complete("ok");
+                    } catch (IllegalArgumentException failure) {
+                        write.reply().complete("error " + failure.getMessage());
+                    }
+                }
+            } catch (RuntimeException e) {
+                batch.forEach(write -> write.reply().complete("error " + e.getMessage()));
+            }
+            batch.clear();
+        }
+    }
+
+    // Called by the spreadsheet on the writer thread after every write
+    private void notifySubscribers(Set<String> cells) {
+        String notification = "changed " + String.join(" ", cells);
+        for (Session session : openSessions) {
+            session.push(notification);
+        }
+    }
+
+    // The cell named by the second word of a request
+    private static CellReference cell(String[] words) {
+        if (words.length < 2) {
+            throw new IllegalArgumentException("Missing cell for " + words[0]);
+        }
+        return CellReference.parse(words[1].toUpperCase(Locale.ROOT)); // checks the column letters too
+    }
+
+    // One client connection, served by its own virtual thread
+    private final class Session implements Runnable {
+        private final Socket socket;
+        private BufferedWriter out;
+        private volatile BlockingQueue<String> notifications; // null until the client subscribes
+        private Thread pusher; // writes the notifications of a subscribed client
+
+        Session(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            openSessions.add(this);
+            try (socket; BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+                socket.setTcpNoDelay(true); // replies are small and awaited one at a time
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String command = line.strip();
+                    if (command.equalsIgnoreCase("quit")) {
+                        break;
+                    }
+                    if (!command.isEmpty()) {
+                        send(handle(command, in));
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away
+            } finally {
+                openSessions.remove(this);
+                if (pusher != null) {
+                    pusher.interrupt();
+                }
+            }
+        }
+
+        private String handle(String command, BufferedReader in) throws IOException {
+            String[] words = command.split("\\s+", 3);
+            try {
+                switch (words[0].toLowerCase(Locale.ROOT)) {
+                    case "set":
+                        return write(Map.of(cell(words).toString(), words.length > 2 ? words[2] : ""));
+                    case "get": {
+                        CellReference cell = cell(words);
+                        return "ok " + spreadsheet.getCellContent(cell.getColumn(), cell.getRow());
+                    }
+                    case "eval": {
+                        CellReference cell = cell(words);
+                        return "ok " + spreadsheet.getCellValue(cell.getColumn(), cell.getRow());
+                    }
+                    case "batch":
+                        return write(readBatch(in));
+                    case "subscribe":
+                        subscribe();
+                        return "ok";
+                    default:
+                        return "error Unknown command: " + words[0];
+                }
+            } catch (IllegalArgumentException e) {
+                return "error " + e.getMessage();
+            }
+        }
+
+        // The lines of a batch up to "end", e.g. "A1 =B1+2" ("A1" alone empties the cell)
+        private Map<String, String> readBatch(BufferedReader in) throws IOException {
+            Map<String, String> edits = new LinkedHashMap<>();
+            String line;
+            while ((line = in.readLine()) != null && !line.strip().equalsIgnoreCase("end")) {
+                String[] edit = line.strip().split("\\s+", 2);
+                if (!edit[0].isEmpty()) {
+                    String cell = edit[0].toUpperCase(Locale.ROOT);
+                    edits.remove(cell);
+                    edits.put(cell, edit.length > 1 ? edit[1] : "");
+                }
+            }
+            return edits;
+        }
+
+        // Queue edits for the writer and wait for them to be applied
+        private String write(Map<String, String> edits) {
+            Write write = new Write(edits, new CompletableFuture<>());
+            writes.add(write);
+            if (closed) {
+                write.reply().complete("error Server closed");
+            }
+            return write.reply().join();
+        }
+
+        private void subscribe() {
+            if (notifications != null) {
+                return;
+            }
+            notifications = new LinkedBlockingQueue<>(MAX_PENDING_NOTIFICATIONS);
+            pusher = Thread.ofVirtual().start(() -> {
+                try {
+                    while (true) {
+                        send(notifications.take());
+                    }
+                } catch (InterruptedException | IOException e) {
+                    // unsubscribed by disconnecting
+                }
+            });
+        }
+
+        void push(String notification) {
+            BlockingQueue<String> queue = notifications;
+            if (queue != null && !queue.offer(notification)) {
+                disconnect(); // too far behind to catch up
+            }
+        }
+
+        void disconnect() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+
+        private synchronized void send(String line) throws IOException {
+            out.write(line);
+            out.newLine();
+            out.flush();
+        }
+    }
+}
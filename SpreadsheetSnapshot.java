@@ -0,0 +1,468 @@
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Versioned binary snapshot of a spreadsheet with interned strings, packed cell keys, compiled
+// formulas and cached values. An opened snapshot is memory-mapped and a block of cells is only
+// decoded when it is first used, so opening a snapshot parses and recalculates nothing.
+//
+// Layout (big-endian):
+//   header    magic, version, cell/string/edge counts, section offsets, range count and offset
+//   strings   per string: data offset; then length-prefixed UTF-8 data
+//   formulas  compiled expression trees of text and formula contents, in postfix order; a formula
+//             shared by copied cells is stored once, with its references as offsets
+//   cells     fixed-size records sorted by key: key, kind, cached value, string id (-1 if none),
+//             formula offset (-1 if none); the same text may have a different formula per cell
+//   edges     dependency graph as (dependency key, dependent key) pairs
+//   ranges    large ranges kept whole rather than as edges: (dependent key, start key, end key)
+public final class SpreadsheetSnapshot {
+    private static final int MAGIC = 0x53505344; // "SPSD"
+    private static final int VERSION = 4; // 2: large range dependencies, 3: shared relative formulas, 4: formulas per cell
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 4 * 8 + 8 + 8;
+    private static final int STRING_ENTRY_SIZE = 8;
+    private static final int CELL_RECORD_SIZE = 8 + 1 + 8 + 4 + 4;
+    private static final int EDGE_RECORD_SIZE = 8 + 8;
+    private static final int RANGE_RECORD_SIZE = 8 + 8 + 8;
+
+    // Cell kinds, with VALID set when the cached value is current
+    private static final byte NUMBER = 1;
+    private static final byte TEXT = 2;
+    private static final byte FORMULA = 3;
+    private static final byte KIND_MASK = 3;
+    private static final byte VALID = 4;
+
+    // Postfix opcodes of compiled formulas
+    private static final byte CONSTANT = 1;
+    private static final byte REFERENCE = 2;
+    private static final byte RANGE = 3;
+    private static final byte NEGATION = 4;
+    private static final byte BINARY = 5;
+    private static final byte FUNCTION = 6;
+    private static final byte INVALID = 7;
+    private static final byte RELATIVE_REFERENCE = 8;
+    private static final byte RELATIVE_RANGE = 9;
+
+    private final MappedByteBuffer buffer;
+    private final int cellCount;
+    private final int stringCount;
+    private final long edgeCount;
+    private final int stringsOffset;
+    private final int formulasOffset;
+    private final int cellsOffset;
+    private final int edgesOffset;
+    private final long rangeCount;
+    private final int rangesOffset;
+    private final String[] strings; // decoded strings, filled on first use
+    private final Map<Integer, Formula> formulasByPosition = new HashMap<>(); // decoded formulas, shared by their cells
+
+    private SpreadsheetSnapshot(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a spreadsheet snapshot");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException("Unsupported snapshot version: " + buffer.getInt(4));
+        }
+        cellCount = buffer.getInt(8);
+        stringCount = buffer.getInt(12);
+        edgeCount = buffer.getLong(16);
+        stringsOffset = (int) buffer.getLong(24);
+        formulasOffset = (int) buffer.getLong(32);
+        cellsOffset = (int) buffer.getLong(40);
+        edgesOffset = (int) buffer.getLong(48);
+        rangeCount = buffer.getLong(56);
+        rangesOffset = (int) buffer.getLong(64);
+        strings = new String[stringCount];
+    }
+
+    // Map a snapshot file; cells are decoded later, block by block
+    public static SpreadsheetSnapshot open(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot too large to map: " + filename);
+            }
+            return new SpreadsheetSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int getCellCount() {
+        return cellCount;
+    }
+
+    // Decode the cells of one block (rows blockIndex * BLOCK_SIZE ...) into a store
+    void loadBlock(int column, int blockIndex, CellStore store) {
+        long first = CellStore.key(column, blockIndex * CellStore.BLOCK_SIZE);
+        long last = first + CellStore.BLOCK_SIZE - 1;
+        for (int record = findFirst(first); record < cellCount; record++) {
+            int position = cellsOffset + record * CELL_RECORD_SIZE;
+            long key = buffer.getLong(position);
+            if (key > last) {
+                break;
+            }
+            restoreCell(key, buffer.get(position + 8), buffer.getDouble(position + 9), buffer.getInt(position + 17),
+                    buffer.getInt(position + 21), store);
+        }
+    }
+
+    // Make the store decode every block of the snapshot
+    void loadAll(CellStore store) {
+        long lastBlock = -1;
+        for (int record = 0; record < cellCount; record++) {
+            long key = buffer.getLong(cellsOffset + record * CELL_RECORD_SIZE);
+            long block = key / CellStore.BLOCK_SIZE; // column and block index of the key
+            if (block != lastBlock) {
+                store.ensureLoaded(CellStore.columnOf(key), CellStore.rowOf(key) / CellStore.BLOCK_SIZE);
+                lastBlock = block;
+            }
+        }
+    }
+
+    // Add the stored dependency edges and large range dependencies to a dependency graph
+    void loadDependencies(DependencyGraph dependencies) {
+        for (long edge = 0; edge < edgeCount; edge++) {
+            int position = (int) (edgesOffset + edge * EDGE_RECORD_SIZE);
+            dependencies.add(buffer.getLong(position + 8), buffer.getLong(position));
+        }
+        for (long range = 0; range < rangeCount; range++) {
+            int position = (int) (rangesOffset + range * RANGE_RECORD_SIZE);
+            CellRange cellRange = new CellRange(CellReference.of(buffer.getLong(position + 8)), CellReference.of(buffer.getLong(position + 16)));
+            dependencies.addRange(buffer.getLong(position), cellRange);
+        }
+    }
+
+    private void restoreCell(long key, byte kind, double value, int stringId, int formulaPosition, CellStore store) {
+        switch (kind & KIND_MASK) {
+            case NUMBER -> {
+                if (stringId < 0) {
+                    store.putNumber(key, value);
+                } else {
+                    store.put(key, new Cell(string(stringId))); // number typed in an unusual form, e.g. "007"
+                }
+            }
+            case TEXT -> store.put(key, new Cell(string(stringId), formula(formulaPosition)));
+            case FORMULA -> {
+                store.put(key, new Cell(string(stringId), formula(formulaPosition)));
+                if ((kind & VALID) != 0) {
+                    store.setValue(key, value);
+                }
+            }
+            default -> throw new IllegalStateException("Corrupt snapshot record for " + CellStore.name(key));
+        }
+    }
+
+    // Index of the first cell record with a key >= the given key
+    private int findFirst(long key) {
+        int low = 0;
+        int high = cellCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getLong(cellsOffset + middle * CELL_RECORD_SIZE) < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private String string(int id) {
+        String string = strings[id];
+        if (string == null) {
+            int position = (int) buffer.getLong(stringsOffset + id * STRING_ENTRY_SIZE);
+            byte[] bytes = new byte[buffer.getInt(position)];
+            buffer.get(position + 4, bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+            strings[id] = string;
+        }
+        return string;
+    }
+
+    private Formula formula(int position) {
+        return formulasByPosition.computeIfAbsent(position, this::decodeFormula);
+    }
+
+    // Rebuild an expression tree from its postfix encoding
+    private Formula decodeFormula(int position) {
+        List<CellReference> references = new ArrayList<>();
+        List<CellRange> ranges = new ArrayList<>();
+        List<Expression.RelativeReference> relativeReferences = new ArrayList<>();
+        List<Expression.RelativeRange> relativeRanges = new ArrayList<>();
+        Deque<Expression> stack = new ArrayDeque<>();
+        int operations = buffer.getInt(position);
+        position += 4;
+        for (int i = 0; i < operations; i++) {
+            byte opcode = buffer.get(position++);
+            switch (opcode) {
+                case CONSTANT -> {
+                    stack.push(new Expression.Constant(buffer.getDouble(position)));
+                    position += 8;
+                }
+                case REFERENCE -> {
+                    CellReference reference = CellReference.of(buffer.getLong(position));
+                    references.add(reference);
+                    stack.push(new Expression.Reference(reference));
+                    position += 8;
+                }
+                case RANGE -> {
+                    CellRange range = new CellRange(CellReference.of(buffer.getLong(position)), CellReference.of(buffer.getLong(position + 8)));
+                    ranges.add(range);
+                    stack.push(new Expression.Range(range));
+                    position += 16;
+                }
+                case RELATIVE_REFERENCE -> {
+                    Expression.RelativeReference reference = new Expression.RelativeReference(buffer.getInt(position), buffer.getInt(position + 4));
+                    relativeReferences.add(reference);
+                    stack.push(reference);
+                    position += 8;
+                }
+                case RELATIVE_RANGE -> {
+                    Expression.RelativeRange range = new Expression.RelativeRange(
+                            new Expression.RelativeReference(buffer.getInt(position), buffer.getInt(position + 4)),
+                            new Expression.RelativeReference(buffer.getInt(position + 8), buffer.getInt(position + 12)));
+                    relativeRanges.add(range);
+                    stack.push(range);
+                    position += 16;
+                }
+                case NEGATION -> stack.push(new Expression.Negation(stack.pop()));
+                case BINARY -> {
+                    Expression right = stack.pop();
+                    Expression left = stack.pop();
+                    stack.push(new Expression.BinaryOperation((char) buffer.get(position++), left, right));
+                }
+                case FUNCTION -> {
+                    AggregateFunction function = AggregateFunction.values()[buffer.get(position)];
+                    int count = buffer.getInt(position + 1);
+                    position += 5;
+                    Expression[] arguments = new Expression[count];
+                    for (int argument = count - 1; argument >= 0; argument--) {
+                        arguments[argument] = stack.pop();
+                    }
+                    stack.push(new Expression.FunctionCall(function, List.of(arguments)));
+                }
+                case INVALID -> {
+                    stack.push(new Expression.Invalid(string(buffer.getInt(position))));
+                    position += 4;
+                }
+                default -> throw new IllegalStateException("Corrupt snapshot formula at " + position);
+            }
+        }
+        if (!relativeReferences.isEmpty() || !relativeRanges.isEmpty()) {
+            return Formula.ofShared(stack.pop(), relativeReferences, relativeRanges);
+        }
+        return Formula.of(stack.pop(), references, ranges);
+    }
+
+    // Write a snapshot of a store and its dependency graph. The file is written next to
+    // the target and moved over it, so an open snapshot of the same file stays intact.
+    public static void write(CellStore store, DependencyGraph dependencies, String filename) throws IOException {
+        Map<Long, List<CellRange>> rangeDependencies = dependencies.getRangeDependencies();
+        // Intern the text of every text and formula cell and write each compiled formula once. The
+        // formula is kept per cell: cells with the same text may hold different shared formulas,
+        // e.g. =A1*2 in B1 and in C5 reads A1 through different offsets.
+        Map<String, Integer> stringIds = new HashMap<>();
+        List<String> stringList = new ArrayList<>();
+        Map<Formula, Integer> formulaPositions = new IdentityHashMap<>(); // a shared formula is written once
+        Map<String, Integer> textPositions = new HashMap<>(); // and any other formula once per distinct text
+        ByteArrayOutputStream formulaBytes = new ByteArrayOutputStream();
+        DataOutputStream formulaData = new DataOutputStream(formulaBytes);
+        int[] cellCount = new int[1];
+        int[][] cellFormulas = {new int[1024]}; // record -> offset of its formula in the section, -1 if none
+        store.forEachKey(key -> {
+            int record = cellCount[0]++;
+            if (record == cellFormulas[0].length) {
+                cellFormulas[0] = Arrays.copyOf(cellFormulas[0], record * 2);
+            }
+            cellFormulas[0][record] = -1;
+            Cell cell = store.getCell(key);
+            if (cell != null) {
+                intern(cell.getContent(), stringIds, stringList);
+                Formula formula = cell.getFormula();
+                if (cell.isFormula() || formula.getConstantValue() == null) {
+                    Integer position = formula.isShared() ? formulaPositions.get(formula) : textPositions.get(cell.getContent());
+                    if (position == null) {
+                        position = formulaData.size();
+                        if (formula.isShared()) {
+                            formulaPositions.put(formula, position);
+                        } else {
+                            textPositions.put(cell.getContent(), position);
+                        }
+                        encodeFormula(formula.getExpression(), formulaData, stringIds, stringList);
+                    }
+                    cellFormulas[0][record] = position;
+                }
+            }
+        });
+        long edgeCount = dependencies.getEdgeCount();
+        long rangeCount = 0;
+        for (List<CellRange> ranges : rangeDependencies.values()) {
+            rangeCount += ranges.size();
+        }
+
+        byte[][] encodedStrings = new byte[stringList.size()][];
+        long stringDataSize = 0;
+        for (int i = 0; i < encodedStrings.length; i++) {
+            encodedStrings[i] = stringList.get(i).getBytes(StandardCharsets.UTF_8);
+            stringDataSize += 4 + encodedStrings[i].length;
+        }
+        long stringsOffset = HEADER_SIZE;
+        long formulasOffset = stringsOffset + (long) stringList.size() * STRING_ENTRY_SIZE + stringDataSize;
+        long cellsOffset = formulasOffset + formulaData.size();
+        long edgesOffset = cellsOffset + (long) cellCount[0] * CELL_RECORD_SIZE;
+        long rangesOffset = edgesOffset + edgeCount * EDGE_RECORD_SIZE;
+        if (rangesOffset + rangeCount * RANGE_RECORD_SIZE > Integer.MAX_VALUE) {
+            throw new IOException("Spreadsheet too large for a snapshot");
+        }
+
+        Path target = Path.of(filename).toAbsolutePath();
+        Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cellCount[0]);
+            out.writeInt(stringList.size());
+            out.writeLong(edgeCount);
+            out.writeLong(stringsOffset);
+            out.writeLong(formulasOffset);
+            out.writeLong(cellsOffset);
+            out.writeLong(edgesOffset);
+            out.writeLong(rangeCount);
+            out.writeLong(rangesOffset);
+
+            long dataPosition = stringsOffset + (long) stringList.size() * STRING_ENTRY_SIZE;
+            for (int i = 0; i < encodedStrings.length; i++) {
+                out.writeLong(dataPosition);
+                dataPosition += 4 + encodedStrings[i].length;
+            }
+            for (byte[] encoded : encodedStrings) {
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            formulaBytes.writeTo(out);
+
+            int[] record = new int[1];
+            store.forEachKey(key -> {
+                try {
+                    Cell cell = store.getCell(key);
+                    int formulaOffset = cellFormulas[0][record[0]++];
+                    byte kind = store.isFormula(key) ? FORMULA : store.hasValue(key) ? NUMBER : TEXT;
+                    out.writeLong(key);
+                    out.writeByte(store.hasValue(key) ? kind | VALID : kind);
+                    out.writeDouble(store.hasValue(key) ? store.getValue(key) : 0);
+                    out.writeInt(cell == null ? -1 : stringIds.get(cell.getContent()));
+                    out.writeInt(formulaOffset < 0 ? -1 : (int) (formulasOffset + formulaOffset));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            dependencies.forEachDependents((dependency, dependents) -> {
+                try {
+                    for (long dependent : dependents) {
+                        out.writeLong(dependency);
+                        out.writeLong(dependent);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            for (Map.Entry<Long, List<CellRange>> entry : rangeDependencies.entrySet()) {
+                for (CellRange range : entry.getValue()) {
+                    out.writeLong(entry.getKey());
+                    out.writeLong(range.start().getKey());
+                    out.writeLong(range.end().getKey());
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int intern(String string, Map<String, Integer> stringIds, List<String> stringList) {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            id = stringList.size();
+            stringIds.put(string, id);
+            stringList.add(string);
+        }
+        return id;
+    }
+
+    // Encode an expression tree in postfix order, prefixed by its number of operations
+    private static void encodeFormula(Expression expression, DataOutputStream out, Map<String, Integer> stringIds,
+                                      List<String> stringList) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream operations = new DataOutputStream(bytes);
+        try {
+            int count = encode(expression, operations, stringIds, stringList);
+            out.writeInt(count);
+            bytes.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int encode(Expression expression, DataOutputStream out, Map<String, Integer> stringIds,
+                              List<String> stringList) throws IOException {
+        if (expression instanceof Expression.Constant constant) {
+            out.writeByte(CONSTANT);
+            out.writeDouble(constant.value());
+            return 1;
+        }
+        if (expression instanceof Expression.Reference reference) {
+            out.writeByte(REFERENCE);
+            out.writeLong(reference.reference().getKey());
+            return 1;
+        }
+        if (expression instanceof Expression.Range range) {
+            out.writeByte(RANGE);
+            out.writeLong(range.range().start().getKey());
+            out.writeLong(range.range().end().getKey());
+            return 1;
+        }
+        if (expression instanceof Expression.RelativeReference reference) {
+            out.writeByte(RELATIVE_REFERENCE);
+            out.writeInt(reference.columnOffset());
+            out.writeInt(reference.rowOffset());
+            return 1;
+        }
+        if (expression instanceof Expression.RelativeRange range) {
+            out.writeByte(RELATIVE_RANGE);
+            out.writeInt(range.start().columnOffset());
+            out.writeInt(range.start().rowOffset());
+            out.writeInt(range.end().columnOffset());
+            out.writeInt(range.end().rowOffset());
+            return 1;
+        }
+        if (expression instanceof Expression.Negation negation) {
+            int count = encode(negation.operand(), out, stringIds, stringList);
+            out.writeByte(NEGATION);
+            return count + 1;
+        }
+        if (expression instanceof Expression.BinaryOperation operation) {
+            int count = encode(operation.left(), out, stringIds, stringList);
+            count += encode(operation.right(), out, stringIds, stringList);
+            out.writeByte(BINARY);
+            out.writeByte(operation.operator());
+            return count + 1;
+        }
+        if (expression instanceof Expression.FunctionCall call) {
+            int count = 0;
+            for (Expression argument : call.arguments()) {
+                count += encode(argument, out, stringIds, stringList);
+            }
+            out.writeByte(FUNCTION);
+            out.writeByte(call.function().ordinal());
+            out.writeInt(call.arguments().size());
+            return count + 1;
+        }
+        if (expression instanceof Expression.Invalid invalid) {
+            out.writeByte(INVALID);
+            out.writeInt(intern(invalid.message(), stringIds, stringList));
+            return 1;
+        }
+        throw new IllegalArgumentException("Cannot store expression: " + expression);
+    }
+}
@@ -1,8 +1,44 @@
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class SpreadsheetTest {
 
+    @TempDir
+    Path tempDir; // files the tests write, deleted after each test
+
+    // A file in the temporary directory of the running test, e.g. tempFile("sheet.csv")
+    private File tempFile(String name) {
+        return tempDir.resolve(name).toFile();
+    }
+
     //Basic setup
 
         @Test
@@ -82,8 +118,12 @@ void testCircularReference() {
     Spreadsheet spreadsheet = new Spreadsheet();
 
     spreadsheet.setCellContent("A", 1, "=B1");
-    spreadsheet.setCellContent("B", 1, "=A1");
+    Exception exceptionEdit = assertThrows(IllegalArgumentException.class, () -> {
+        spreadsheet.setCellContent("B", 1, "=A1");
+    });
 
+    assertTrue(exceptionEdit.getMessage().contains("Circular reference detected"));
+    assertEquals("0", spreadsheet.getCellContent("B", 1));
 
     Exception exceptionA1 = assertThrows(IllegalArgumentException.class, () -> {
         spreadsheet.evaluateFormula("=A1", "A1");
@@ -99,4 +139,962 @@ void testCircularReference() {
     assertTrue(exceptionB1.getMessage().contains("Circular reference detected"));
 }
 
+//Testing compiled formulas
+    @Test
+    void testCompiledFormulas() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+
+        spreadsheet.setCellContent("A", 1, "10");
+        spreadsheet.setCellContent("A", 2, "4");
+
+        // Operator precedence, parentheses and decimals
+        assertEquals(18.0, spreadsheet.evaluateFormula("=A1+A2*2", "C1"));
+        assertEquals(28.0, spreadsheet.evaluateFormula("=(A1+A2)*2", "C1"));
+        assertEquals(25.0, spreadsheet.evaluateFormula("=2.5*A1", "C1"));
+
+        // Functions mixing ranges, references and numbers
+        assertEquals(24.0, spreadsheet.evaluateFormula("=SUM(A1:A2,A1)", "C1"));
+
+        // Invalid formulas are reported when evaluated
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.evaluateFormula("=A1+", "C1"));
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.evaluateFormula("=FOO(A1)", "C1"));
+    }
+
+//Testing recalculation of dependent cells
+    @Test
+    void testRecalculateDependents() throws IOException {
+        Spreadsheet spreadsheet = new Spreadsheet();
+
+        // Diamond: A1 feeds B1 and C1, which both feed D1
+        spreadsheet.setCellContent("A", 1, "1");
+        spreadsheet.setCellContent("B", 1, "=A1+1");
+        spreadsheet.setCellContent("C", 1, "=A1*10");
+        spreadsheet.setCellContent("D", 1, "=B1+C1");
+        assertEquals(String.format("%.1f", 12.0), spreadsheet.getCellContent("D", 1));
+
+        // Every edit of A1 reaches all dependents, not only the first one
+        spreadsheet.setCellContent("A", 1, "2");
+        spreadsheet.setCellContent("A", 1, "3");
+        assertEquals(String.format("%.1f", 34.0), spreadsheet.getCellContent("D", 1));
+
+        // Replacing a formula removes its old dependencies
+        spreadsheet.setCellContent("B", 1, "5");
+        assertEquals("5", spreadsheet.getCellContent("B", 1));
+        spreadsheet.setCellContent("A", 1, "4");
+        assertEquals(String.format("%.1f", 45.0), spreadsheet.getCellContent("D", 1));
+
+        // Cells that cannot be evaluated are reported to the monitor, not printed
+        List<String> reports = new ArrayList<>();
+        spreadsheet.setEvaluationMonitor(new EvaluationMonitor() {
+            @Override
+            public void circularReference(long key) {
+                reports.add("circular " + CellStore.name(key));
+            }
+
+            @Override
+            public void cellFailed(long key, String message) {
+                reports.add(CellStore.name(key) + ": " + message);
+            }
+        });
+        spreadsheet.setCellContent("A", 1, "text");
+        assertEquals(List.of("C1: Invalid value: text", "D1: Invalid value: text"), reports);
+
+        // A loaded file can hold a cycle, which only the recalculation finds
+        reports.clear();
+        File file = tempFile("spreadsheet.txt");
+        Files.writeString(file.toPath(), "E1;=F1\nF1;=E1\n");
+        spreadsheet.loadSpreadsheet(file.getPath());
+        assertEquals(Set.of("circular E1", "circular F1"), new HashSet<>(reports));
+    }
+
+//Testing cached values
+    @Test
+    void testCachedValuesFollowEdits() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+
+        // Long chain A1 <- A2 <- ... <- A500
+        spreadsheet.setCellContent("A", 1, "1");
+        for (int row = 2; row <= 500; row++) {
+            spreadsheet.setCellContent("A", row, "=A" + (row - 1) + "+1");
+        }
+        assertEquals(500.0, spreadsheet.evaluateFormula("=A500", "B1"));
+
+        // Editing the head invalidates the whole chain
+        spreadsheet.setCellContent("A", 1, "101");
+        assertEquals(600.0, spreadsheet.evaluateFormula("=A500", "B1"));
+        assertEquals(String.format("%.1f", 600.0), spreadsheet.getCellContent("A", 500));
+
+        // A formula replaced by a number shows the number, not the old result
+        spreadsheet.setCellContent("A", 500, "7");
+        assertEquals("7", spreadsheet.getCellContent("A", 500));
+        assertEquals(7.0, spreadsheet.evaluateFormula("=A500", "B1"));
+    }
+
+//Testing cell storage
+    @Test
+    void testCellStorage() throws Exception {
+        Spreadsheet spreadsheet = new Spreadsheet();
+
+        // Numbers keep the text they were entered with
+        spreadsheet.setCellContent("A", 1, "42");
+        spreadsheet.setCellContent("A", 2, "007");
+        spreadsheet.setCellContent("A", 3, "2.5");
+        assertEquals("42", spreadsheet.getCellContent("A", 1));
+        assertEquals("007", spreadsheet.getCellContent("A", 2));
+        assertEquals("2.5", spreadsheet.getCellContent("A", 3));
+
+        // Multi-letter columns and rows far apart
+        spreadsheet.setCellContent("AB", 5000, "=A1+A2");
+        assertEquals(49.0, spreadsheet.evaluateFormula("=AB5000", "C1"));
+
+        // Clearing a cell makes it empty again
+        spreadsheet.setCellContent("A", 2, "");
+        assertEquals("0", spreadsheet.getCellContent("A", 2));
+        assertEquals(42.0, spreadsheet.evaluateFormula("=AB5000", "C1"));
+
+        // Save and load keep every cell
+        File file = tempFile("spreadsheet.txt");
+        spreadsheet.saveSpreadsheet(file.getPath());
+        Spreadsheet loaded = new Spreadsheet();
+        loaded.loadSpreadsheet(file.getPath());
+        assertEquals("2.5", loaded.getCellContent("A", 3));
+        assertEquals(42.0, loaded.evaluateFormula("=AB5000", "C1"));
+    }
+
+//Testing the range aggregate index
+    @Test
+    void testAggregateIndex() {
+        Spreadsheet scanned = new Spreadsheet();
+        Spreadsheet indexed = new Spreadsheet();
+        indexed.setAggregateIndexEnabled(true);
+
+        for (Spreadsheet spreadsheet : new Spreadsheet[]{scanned, indexed}) {
+            for (int row = 1; row <= 300; row += 3) {
+                spreadsheet.setCellContent("A", row, String.valueOf(row % 17 - 5));
+                spreadsheet.setCellContent("B", row, "=A" + row + "*2");
+            }
+            spreadsheet.setCellContent("D", 1, "=SUM(A1:B300)");
+        }
+
+        // Same results as visiting every cell, empty cells counting as 0
+        for (String formula : new String[]{"=SUM(A1:B300)", "=MIN(A2:A3)", "=MAX(A1:C400)", "=AVERAGE(A1:B10,4)"}) {
+            assertEquals(scanned.evaluateFormula(formula, "E1"), indexed.evaluateFormula(formula, "E1"), formula);
+        }
+
+        // The index follows edits and recalculated formulas
+        scanned.setCellContent("A", 4, "1000");
+        indexed.setCellContent("A", 4, "1000");
+        assertEquals(scanned.getCellContent("D", 1), indexed.getCellContent("D", 1));
+
+        // Rows far apart only cost index memory for their own blocks
+        for (Spreadsheet spreadsheet : new Spreadsheet[]{scanned, indexed}) {
+            spreadsheet.setCellContent("C", 16_000_000, "-7");
+            spreadsheet.setCellContent("C", 5000, "3");
+        }
+        for (String formula : new String[]{"=SUM(C1:C16000000)", "=MIN(C4000:C16000001)", "=MAX(C5000:C5000)", "=AVERAGE(C2000:C9000)"}) {
+            assertEquals(scanned.evaluateFormula(formula, "E1"), indexed.evaluateFormula(formula, "E1"), formula);
+        }
+
+        // Text in a range and circular ranges are still reported
+        indexed.setCellContent("A", 2, "Hello");
+        assertThrows(IllegalArgumentException.class, () -> indexed.evaluateFormula("=SUM(A1:A3)", "E1"));
+        assertThrows(IllegalArgumentException.class, () -> indexed.evaluateFormula("=SUM(D1:D2)", "D2"));
+    }
+
+//Testing parallel recalculation
+    @Test
+    void testParallelRecalculation() {
+        Spreadsheet serial = new Spreadsheet();
+        Spreadsheet parallel = new Spreadsheet();
+        parallel.setRecalculationThreads(4);
+
+        // Wide, shallow graph: every B cell reads X1, every C cell reads its B cell
+        for (Spreadsheet spreadsheet : new Spreadsheet[]{serial, parallel}) {
+            spreadsheet.setCellContent("X", 1, "2");
+            for (int row = 1; row <= 600; row++) {
+                spreadsheet.setCellContent("A", row, String.valueOf(row));
+                spreadsheet.setCellContent("B", row, "=A" + row + "*X1");
+                spreadsheet.setCellContent("C", row, "=B" + row + "+MAX(A1:A3)");
+            }
+            spreadsheet.setCellContent("D", 1, "=SUM(C1:C600)");
+            spreadsheet.setCellContent("X", 1, "3");
+        }
+
+        assertEquals(serial.getCellContent("D", 1), parallel.getCellContent("D", 1));
+        for (int row = 1; row <= 600; row += 37) {
+            assertEquals(serial.getCellContent("C", row), parallel.getCellContent("C", row));
+        }
+        assertEquals(4, parallel.getRecalculationThreads());
+
+        // A failing level is reported once per cell to the monitor, on the writing thread
+        Thread writer = Thread.currentThread();
+        Set<String> failed = new HashSet<>();
+        parallel.setEvaluationMonitor(new EvaluationMonitor() {
+            @Override
+            public void cellFailed(long key, String message) {
+                assertSame(writer, Thread.currentThread());
+                failed.add(CellStore.name(key));
+            }
+        });
+        parallel.setCellContent("X", 1, "text");
+        assertEquals(1201, failed.size()); // B1:B600, C1:C600 and D1
+    }
+
+//Testing bulk loading
+    @Test
+    void testLoadRecalculatesOnce() throws Exception {
+        File file = tempFile("spreadsheet.txt");
+        try (PrintWriter writer = new PrintWriter(file)) {
+            writer.println("A1;=B1+C1"); // forward references
+            writer.println("B1;=C1*2");
+            writer.println("C1;5");
+            writer.println("not a cell line");
+            writer.println("A+1;3");
+            writer.println("D1;=SUM(A1:C1)");
+        }
+
+        Spreadsheet spreadsheet = new Spreadsheet();
+        Spreadsheet.LoadStatistics loaded = spreadsheet.loadSpreadsheet(file.getPath());
+        assertEquals(6, loaded.lines());
+        assertEquals(4, loaded.cells()); // the two invalid lines are skipped
+        assertTrue(loaded.linesPerSecond() > 0);
+
+        assertEquals(String.format("%.1f", 15.0), spreadsheet.getCellContent("A", 1));
+        assertEquals(String.format("%.1f", 30.0), spreadsheet.getCellContent("D", 1));
+        assertEquals("0", spreadsheet.getCellContent("A", 2));
+    }
+
+    //Testing binary snapshots
+    @Test
+    void testSnapshotRoundTrip() throws Exception {
+        File file = tempFile("spreadsheet.snapshot");
+        Spreadsheet original = new Spreadsheet();
+        original.setCellContent("A", 1, "10");
+        original.setCellContent("A", 2, "007");
+        original.setCellContent("B", 1, "=A1*2");
+        original.setCellContent("B", 2, "=SUM(A1:A2)+B1");
+        original.setCellContent("C", 1, "hello");
+        original.setCellContent("C", 2, "=C1+1");
+        original.setCellContent("AB", 3000, "=-A1");
+        original.saveSnapshot(file.getPath());
+
+        Spreadsheet opened = Spreadsheet.openSnapshot(file.getPath());
+        assertEquals("10", opened.getCellContent("A", 1));
+        assertEquals("007", opened.getCellContent("A", 2));
+        assertEquals(String.format("%.1f", 20.0), opened.getCellContent("B", 1));
+        assertEquals(String.format("%.1f", 37.0), opened.getCellContent("B", 2));
+        assertEquals("hello", opened.getCellContent("C", 1));
+        assertEquals("=C1+1", opened.getCellContent("C", 2));
+        assertEquals(String.format("%.1f", -10.0), opened.getCellContent("AB", 3000));
+        assertEquals("0", opened.getCellContent("D", 1));
+
+        // Edits after opening reach the dependents stored in the snapshot
+        opened.setCellContent("A", 1, "1");
+        assertEquals(String.format("%.1f", 2.0), opened.getCellContent("B", 1));
+        assertEquals(String.format("%.1f", 10.0), opened.getCellContent("B", 2));
+        assertEquals(String.format("%.1f", -1.0), opened.getCellContent("AB", 3000));
+
+        // The dependencies are read on first use, also by a fork or a save before any edit
+        Spreadsheet untouched = Spreadsheet.openSnapshot(file.getPath());
+        Spreadsheet fork = untouched.fork();
+        fork.setCellContent("A", 1, "3");
+        assertEquals(String.format("%.1f", 16.0), fork.getCellContent("B", 2));
+        File copy = tempFile("copy.snapshot");
+        untouched.saveSnapshot(copy.getPath());
+        Spreadsheet reopened = Spreadsheet.openSnapshot(copy.getPath());
+        reopened.setCellContent("A", 1, "2");
+        assertEquals(String.format("%.1f", 13.0), reopened.getCellContent("B", 2));
+
+        // Saving over the open snapshot leaves the opened sheet usable
+        opened.saveSnapshot(file.getPath());
+        assertEquals(String.format("%.1f", 10.0), Spreadsheet.openSnapshot(file.getPath()).getCellContent("B", 2));
+        assertThrows(IOException.class, () -> Spreadsheet.openSnapshot(Files.createFile(tempDir.resolve("empty.snapshot")).toString()));
+    }
+
+    //Testing the change journal
+    @Test
+    void testChangeJournal() throws Exception {
+        Path directory = tempDir;
+        String snapshot = directory.resolve("sheet.snapshot").toString();
+        String journal = directory.resolve("sheet.journal").toString();
+
+        Spreadsheet spreadsheet = Spreadsheet.openJournaled(snapshot, journal);
+        spreadsheet.setCellContent("A", 1, "5");
+        spreadsheet.setCellContent("B", 1, "=A1*2");
+        spreadsheet.setCellContent("C", 1, "text");
+        spreadsheet.saveChanges();
+        spreadsheet.compactJournal().get();
+        spreadsheet.setCellContent("A", 1, "7");
+        spreadsheet.setCellContent("C", 1, "");
+        spreadsheet.saveChanges();
+
+        // A torn record at the end, as left by a crash, is ignored and cut off
+        try (FileOutputStream out = new FileOutputStream(journal, true)) {
+            out.write(new byte[]{0, 0, 0, 9, 1, 2});
+        }
+
+        Spreadsheet reopened = Spreadsheet.openJournaled(snapshot, journal);
+        assertEquals("7", reopened.getCellContent("A", 1));
+        assertEquals(String.format("%.1f", 14.0), reopened.getCellContent("B", 1));
+        assertEquals("0", reopened.getCellContent("C", 1));
+        reopened.setCellContent("D", 1, "=B1+1");
+        reopened.closeJournal();
+        spreadsheet.closeJournal();
+
+        Spreadsheet again = Spreadsheet.openJournaled(snapshot, journal);
+        assertEquals(String.format("%.1f", 15.0), again.getCellContent("D", 1));
+        again.closeJournal();
+        assertThrows(IllegalStateException.class, () -> new Spreadsheet().saveChanges());
+
+        // A last edit before an idle period reaches the disk without another call
+        File idle = tempFile("spreadsheet.journal");
+        try (ChangeJournal changes = ChangeJournal.open(idle.getPath())) {
+            changes.append(CellStore.key(0, 1), "42");
+            assertEquals(0, idle.length()); // still buffered
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (idle.length() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(idle.length() > 0);
+        }
+    }
+
+    //Testing evaluation metrics
+    @Test
+    void testEvaluationMetrics() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        spreadsheet.setEvaluationMonitor(metrics);
+        spreadsheet.setCellContent("A", 1, "1");
+        spreadsheet.setCellContent("B", 1, "=A1+1");
+        spreadsheet.setCellContent("C", 1, "=B1*2");
+        spreadsheet.setCellContent("D", 1, "=SUM(A1:C1)");
+        metrics.reset();
+        assertTrue(metrics.getHottestCells(10).isEmpty()); // per-cell counts are off by default
+        metrics.setCellCounting(true);
+
+        ByteArrayOutputStream trace = new ByteArrayOutputStream();
+        metrics.setTraceSampling(2, new PrintStream(trace, true));
+        spreadsheet.setCellContent("A", 1, "2"); // recalculates B1, C1 and D1
+        spreadsheet.setCellContent("A", 1, "3"); // the second recalculation is traced
+
+        assertEquals(2, metrics.getRecalculations());
+        assertEquals(6, metrics.getEvaluations());
+        assertEquals(6, metrics.getRangeCellReads());
+        assertEquals(2, metrics.getFanOut().getCount());
+        assertEquals(4, metrics.getFanOut().getMax());
+        assertEquals(3, metrics.getEvaluationsPerEdit().getMax());
+        assertEquals(Long.valueOf(2), metrics.getHottestCells(10).get("B1"));
+        assertEquals(3, metrics.getHottestCells(10).size());
+        String traced = trace.toString();
+        assertTrue(traced.contains("Visiting cell: B1"));
+        assertTrue(traced.contains("Evaluated content for cell C1: 8.0"));
+        assertEquals(3, traced.split("Finished visiting cell").length - 1);
+
+        spreadsheet.setEvaluationMonitor(null);
+        spreadsheet.setCellContent("A", 1, "4");
+        assertEquals(2, metrics.getRecalculations());
+    }
+
+    //Testing concurrent reads
+    @Test
+    void testConcurrentReads() throws Exception {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A", 1, "0");
+        spreadsheet.setCellContent("B", 1, "=A1*2");
+        spreadsheet.setCellContent("C", 1, "=SUM(A1:B1)");
+        spreadsheet.setConcurrentReads(true);
+
+        AtomicReference<String> failure = new AtomicReference<>();
+        AtomicBoolean done = new AtomicBoolean();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                while (!done.get() && failure.get() == null) {
+                    // A formula is never seen half recalculated, and a snapshot is consistent
+                    if (spreadsheet.getCellContent("C", 1).startsWith("=")) {
+                        failure.set("Saw a formula that was not recalculated");
+                    }
+                    Spreadsheet version = spreadsheet.snapshot();
+                    double a = Double.parseDouble(version.getCellContent("A", 1));
+                    double c = version.evaluateFormula("=SUM(A1:B1)", "C1");
+                    if (c != 3 * a || !version.getCellContent("B", 1).equals(String.format("%.1f", 2 * a))) {
+                        failure.set("Inconsistent snapshot: A1=" + a + ", C1=" + c);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 1; i <= 2000; i++) {
+            spreadsheet.setCellContent("A", 1, Integer.toString(i));
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(String.format("%.1f", 6000.0), spreadsheet.getCellContent("C", 1));
+        Spreadsheet version = spreadsheet.snapshot();
+        spreadsheet.setCellContent("A", 1, "1");
+        assertEquals("2000", version.getCellContent("A", 1));
+        assertThrows(IllegalStateException.class, () -> version.setCellContent("A", 1, "5"));
+    }
+
+    //Testing batch edits
+    @Test
+    void testBatchEdits() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A", 1, "=B1");
+        spreadsheet.setCellContent("B", 1, "5");
+        spreadsheet.setCellContent("D", 1, "=SUM(C1:C3)");
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        spreadsheet.setEvaluationMonitor(metrics);
+
+        // One at a time, B1 = A1 before A1 = 5 would be a circular reference for a moment
+        Map<String, String> edits = new LinkedHashMap<>();
+        edits.put("B1", "=A1");
+        edits.put("A1", "5");
+        edits.put("C1", "1");
+        edits.put("C2", "2");
+        edits.put("C3", "=B1*3");
+        spreadsheet.setCellContents(edits);
+        assertEquals("5", spreadsheet.getCellContent("A", 1));
+        assertEquals(String.format("%.1f", 5.0), spreadsheet.getCellContent("B", 1));
+        assertEquals(String.format("%.1f", 18.0), spreadsheet.getCellContent("D", 1));
+        assertEquals(1, metrics.getRecalculations());
+        assertEquals(3, metrics.getEvaluations()); // B1, C3 and D1 once each
+
+        // A batch creating a circular reference is rolled back as a whole
+        Map<String, String> circular = new LinkedHashMap<>();
+        circular.put("C1", "10");
+        circular.put("A1", "=E1");
+        circular.put("E1", "=B1+1");
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.setCellContents(circular));
+        assertEquals("1", spreadsheet.getCellContent("C", 1));
+        assertEquals("5", spreadsheet.getCellContent("A", 1));
+        assertEquals("0", spreadsheet.getCellContent("E", 1));
+        assertEquals(String.format("%.1f", 18.0), spreadsheet.getCellContent("D", 1));
+
+        // Invalid cell names are rejected before anything changes
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.setCellContents(Map.of("C1", "7", "1A", "2")));
+        assertEquals("1", spreadsheet.getCellContent("C", 1));
+    }
+
+    //Testing circular references found at edit time and long chains
+    @Test
+    void testEditTimeCyclesAndLongChains() throws Exception {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.setCellContent("A", 2, "=SUM(A1:A3)"));
+        spreadsheet.setCellContent("C", 1, "=D1");
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.setCellContent("D", 1, "=MAX(B1:C2)+1"));
+        assertEquals("0", spreadsheet.getCellContent("A", 2));
+        assertEquals("0", spreadsheet.getCellContent("D", 1));
+
+        // A chain of 100000 references, built and recalculated without deep recursion
+        int length = 100000;
+        Map<String, String> chain = new LinkedHashMap<>();
+        chain.put("A1", "1");
+        for (int row = 2; row <= length; row++) {
+            chain.put("A" + row, "=A" + (row - 1) + "+1");
+        }
+        spreadsheet.setCellContents(chain);
+        assertEquals(String.format("%.1f", (double) length), spreadsheet.getCellContent("A", length));
+        spreadsheet.setCellContent("A", 1, "2");
+        assertEquals(String.format("%.1f", length + 1.0), spreadsheet.getCellContent("A", length));
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.setCellContent("A", 1, "=A" + length));
+
+        // Every cell of the chain fails once the first one is text; reading the stale end of
+        // the chain from a snapshot evaluates the whole chain again, iteratively
+        spreadsheet.setCellContent("A", 1, "text");
+        File file = tempFile("chain.snapshot");
+        spreadsheet.saveSnapshot(file.getPath());
+        Spreadsheet opened = Spreadsheet.openSnapshot(file.getPath());
+        Exception error = assertThrows(IllegalArgumentException.class, () -> opened.evaluateFormula("=A" + length + "*2", "B1"));
+        assertEquals("Invalid value: text", error.getMessage());
+    }
+
+    //Testing sparse ranges and multi-letter columns
+    @Test
+    void testSparseRanges() throws Exception {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A", 1, "10");
+        spreadsheet.setCellContent("AB", 2, "20");
+        spreadsheet.setCellContent("ZZ", 50000, "=AA1+5");
+        spreadsheet.setCellContent("AAA", 1, "=SUM(A1:ZZ50000)");
+        spreadsheet.setCellContent("AAA", 2, "=AVERAGE(AA1:AB2)");
+        spreadsheet.setCellContent("AAA", 3, "=MIN(A1:ZZ50000)");
+        EvaluationMetrics metrics = new EvaluationMetrics();
+        spreadsheet.setEvaluationMonitor(metrics);
+
+        assertEquals(String.format("%.1f", 35.0), spreadsheet.getCellContent("AAA", 1));
+        assertEquals(String.format("%.1f", 5.0), spreadsheet.getCellContent("AAA", 2));
+        assertEquals(String.format("%.1f", 0.0), spreadsheet.getCellContent("AAA", 3));
+
+        // Edits inside a large range reach the formulas over it, visiting occupied cells only
+        spreadsheet.setCellContent("AA", 1, "1");
+        assertEquals(String.format("%.1f", 37.0), spreadsheet.getCellContent("AAA", 1));
+        assertEquals(String.format("%.1f", 5.25), spreadsheet.getCellContent("AAA", 2));
+        assertTrue(metrics.getRangeCellReads() <= 12);
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.setCellContent("B", 7, "=AAA1"));
+        spreadsheet.setCellContent("AAA", 1, "=SUM(A1:A2)");
+        spreadsheet.setCellContent("ZZ", 50000, "");
+        assertEquals(String.format("%.1f", 10.0), spreadsheet.getCellContent("AAA", 1));
+
+        // Edits outside every large range recalculate nothing
+        long evaluations = metrics.getEvaluations();
+        spreadsheet.setCellContent("AAB", 5, "3");
+        spreadsheet.setCellContent("ZZ", 50001, "4");
+        assertEquals(evaluations, metrics.getEvaluations());
+
+        // Large ranges survive a snapshot
+        spreadsheet.setCellContent("AAA", 4, "=MAX(A1:ZZ50000)");
+        File file = tempFile("sparse.snapshot");
+        spreadsheet.saveSnapshot(file.getPath());
+        Spreadsheet opened = Spreadsheet.openSnapshot(file.getPath());
+        opened.setCellContent("XY", 40000, "99");
+        assertEquals(String.format("%.1f", 99.0), opened.getCellContent("AAA", 4));
+    }
+
+    //Testing copied formulas sharing one compiled formula
+    @Test
+    void testSharedFormulas() throws Exception {
+        File file = tempFile("copied.txt");
+        try (PrintWriter writer = new PrintWriter(file)) {
+            for (int row = 1; row <= 100; row++) {
+                writer.println("A" + row + ";" + row);
+                writer.println("B" + row + ";2");
+                writer.println("C" + row + ";=A" + row + "*B" + row);
+                writer.println("D" + row + ";=SUM(A" + row + ":C" + row + ")");
+            }
+        }
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.loadSpreadsheet(file.getPath());
+        assertEquals(String.format("%.1f", 10.0), spreadsheet.getCellContent("C", 5));
+        assertEquals(String.format("%.1f", 17.0), spreadsheet.getCellContent("D", 5));
+        assertEquals(String.format("%.1f", 302.0), spreadsheet.getCellContent("D", 100));
+
+        // Every copy reads its own row and keeps its own text
+        spreadsheet.setCellContent("A", 5, "7");
+        spreadsheet.setCellContent("A", 6, "x");
+        spreadsheet.setCellContent("E", 6, "=A06*2");
+        assertEquals(String.format("%.1f", 14.0), spreadsheet.getCellContent("C", 5));
+        assertEquals(String.format("%.1f", 23.0), spreadsheet.getCellContent("D", 5));
+        assertEquals("=A6*B6", spreadsheet.getCellContent("C", 6));
+        assertEquals("=SUM(A6:C6)", spreadsheet.getCellContent("D", 6));
+        assertEquals("=A06*2", spreadsheet.getCellContent("E", 6));
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.setCellContent("B", 8, "=C8"));
+
+        // Saved as text and as a snapshot, the copies come back as written
+        File text = tempFile("saved.txt");
+        spreadsheet.saveSpreadsheet(text.getPath());
+        assertTrue(Files.readAllLines(text.toPath()).contains("C7;=A7*B7"));
+        File snapshot = tempFile("copied.snapshot");
+        spreadsheet.saveSnapshot(snapshot.getPath());
+        Spreadsheet opened = Spreadsheet.openSnapshot(snapshot.getPath());
+        assertEquals("=A6*B6", opened.getCellContent("C", 6));
+        opened.setCellContent("B", 9, "3");
+        assertEquals(String.format("%.1f", 27.0), opened.getCellContent("C", 9));
+        assertEquals(String.format("%.1f", 39.0), opened.getCellContent("D", 9));
+
+        // The same text at other rows and columns reads the same cells after a snapshot
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A", 1, "100");
+        sheet.setCellContent("B", 1, "=A1*2");
+        sheet.setCellContent("C", 5, "=A1*2");
+        sheet.setCellContent("F", 20, "=SUM(A1:B1)");
+        sheet.setCellContent("B", 2, "=SUM(A1:B1)");
+        sheet.saveSnapshot(snapshot.getPath());
+        Spreadsheet reopened = Spreadsheet.openSnapshot(snapshot.getPath());
+        reopened.setCellContent("A", 1, "4");
+        assertEquals(String.format("%.1f", 8.0), reopened.getCellContent("B", 1));
+        assertEquals(String.format("%.1f", 8.0), reopened.getCellContent("C", 5));
+        assertEquals(String.format("%.1f", 12.0), reopened.getCellContent("F", 20));
+        assertEquals(String.format("%.1f", 12.0), reopened.getCellContent("B", 2));
+    }
+
+    //Testing vectorized range functions
+    @Test
+    void testColumnAggregates() {
+        double[] values = new double[1037];
+        Random random = new Random(17);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(2000) - 1000;
+        }
+        for (int[] run : new int[][]{{0, 1037}, {3, 10}, {5, 6}, {1000, 1037}}) {
+            Aggregate reduced = new Aggregate();
+            Aggregate scalar = new Aggregate();
+            ColumnAggregates.reduce(values, run[0], run[1], reduced);
+            ColumnAggregates.reduceScalar(values, run[0], run[1], scalar);
+            assertEquals(scalar.getSum(), reduced.getSum());
+            assertEquals(scalar.getMin(), reduced.getMin());
+            assertEquals(scalar.getMax(), reduced.getMax());
+            assertEquals(run[1] - run[0], reduced.getCount());
+        }
+
+        // Numeric runs are reduced in bulk; text, stale formulas and empty cells still count.
+        // A monitor that does not observe range cell reads keeps the bulk reduction.
+        Spreadsheet spreadsheet = new Spreadsheet();
+        AtomicInteger rangeReads = new AtomicInteger();
+        spreadsheet.setEvaluationMonitor(new EvaluationMonitor() {
+            @Override
+            public void rangeCellRead(long key, double value) {
+                rangeReads.incrementAndGet();
+            }
+        });
+        for (int row = 1; row <= 3000; row++) {
+            spreadsheet.setCellContent("A", row, Integer.toString(row));
+        }
+        spreadsheet.setCellContent("A", 1500, "=A1*2");
+        spreadsheet.setCellContent("A", 2500, "");
+        spreadsheet.setCellContent("B", 1, "=SUM(A1:A4000)");
+        spreadsheet.setCellContent("B", 2, "=MIN(A1:A3000)");
+        spreadsheet.setCellContent("B", 3, "=AVERAGE(A1:A4000)");
+        double sum = 3000 * 3001 / 2.0 - 1500 + 2 - 2500;
+        assertEquals(String.format("%.1f", sum), spreadsheet.getCellContent("B", 1));
+        assertEquals(String.format("%.1f", 0.0), spreadsheet.getCellContent("B", 2));
+        assertEquals(String.format("%.1f", sum / 4000), spreadsheet.getCellContent("B", 3));
+        spreadsheet.setCellContent("A", 1, "5");
+        assertEquals(String.format("%.1f", sum + 4 + 8), spreadsheet.getCellContent("B", 1));
+        assertEquals(0, rangeReads.get());
+        spreadsheet.setCellContent("A", 7, "text");
+        assertEquals("=SUM(A1:A4000)", spreadsheet.getCellContent("B", 1));
+    }
+
+    //Testing batch command scripts
+    @Test
+    void testBatchCommands() throws Exception {
+        File file = tempFile("batch.txt");
+        String script = String.join("\n",
+                "# two sets, recalculated together",
+                "set A1 10",
+                "set B1 =A1*2",
+                "get B1",
+                "eval B1",
+                "set C1 =D1",
+                "set D1 =C1",
+                "set E1 hello world",
+                "eval E1",
+                "get ZZZZ1",
+                "frobnicate",
+                "save " + file.getPath(),
+                "set A1",
+                "load " + file.getPath(),
+                "show",
+                "exit",
+                "get A1");
+        StringWriter output = new StringWriter();
+        Spreadsheet spreadsheet = new Spreadsheet();
+        int failures = new BatchRunner(spreadsheet, output).run(new StringReader(script));
+
+        String[] records = output.toString().split("\\R");
+        assertEquals(4, failures);
+        assertTrue(records[0].matches("2\tok\t0\t"));
+        assertTrue(records[1].matches("3\tok\t\\d+\t"));
+        assertTrue(records[2].matches("4\tok\t\\d+\t" + String.format("%.1f", 20.0)));
+        assertTrue(records[3].endsWith("\t20.0"));
+        assertTrue(records[4].startsWith("6\tok\t"));
+        assertTrue(records[5].startsWith("7\terror\t"));
+        assertTrue(records[5].endsWith("Circular reference detected: C1"));
+        assertTrue(records[6].startsWith("8\tok\t"));
+        assertTrue(records[7].endsWith("Invalid value: hello world"));
+        assertTrue(records[8].startsWith("10\terror\t"));
+        assertTrue(records[9].endsWith("Unknown command: frobnicate"));
+        assertTrue(records[10].startsWith("12\tok\t"));
+        assertTrue(records[11].startsWith("13\tok\t"));
+        assertEquals("10", spreadsheet.getCellContent("A", 1)); // emptied, then loaded again
+        assertEquals(4, Arrays.stream(records).filter(record -> record.startsWith("15\tcell\t")).count());
+        assertTrue(records[records.length - 1].matches("15\tok\t\\d+\t4"));
+
+        // A run of sets is one edit: a cycle that the run breaks again is not an error
+        output = new StringWriter();
+        failures = new BatchRunner(new Spreadsheet(), output).run(new StringReader(
+                "set A1 =B1\nset B1 =A1\nset B1 5\neval A1"));
+        records = output.toString().split("\\R");
+        assertEquals(0, failures);
+        assertEquals(4, records.length);
+        assertTrue(records[3].endsWith("\t5.0"));
+    }
+
+    //Testing the spreadsheet server
+    @Test
+    void testSpreadsheetServer() throws Exception {
+        try (SpreadsheetServer server = new SpreadsheetServer(new Spreadsheet(), 0);
+             Socket subscriber = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            BufferedReader notifications = new BufferedReader(new InputStreamReader(subscriber.getInputStream()));
+            PrintWriter subscribe = new PrintWriter(subscriber.getOutputStream(), true);
+            subscribe.println("subscribe");
+            assertEquals("ok", notifications.readLine());
+
+            BufferedReader replies = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            PrintWriter requests = new PrintWriter(client.getOutputStream(), true);
+            requests.println("set A1 5");
+            assertEquals("ok", replies.readLine());
+            requests.println("set B1 =A1*2");
+            assertEquals("ok", replies.readLine());
+            requests.println("get B1");
+            assertEquals("ok " + String.format("%.1f", 10.0), replies.readLine());
+            requests.println("eval B1");
+            assertEquals("ok 10.0", replies.readLine());
+            requests.println("set A1 =B1");
+            assertEquals("error Circular reference detected: A1", replies.readLine());
+            requests.println("batch\nA2 1\nA3 =A2+1\nend");
+            assertEquals("ok", replies.readLine());
+            requests.println("get A3");
+            assertEquals("ok " + String.format("%.1f", 2.0), replies.readLine());
+            requests.println("frobnicate");
+            assertEquals("error Unknown command: frobnicate", replies.readLine());
+            requests.println("get ZZZZ1");
+            assertEquals("error Invalid column: ZZZZ", replies.readLine());
+
+            assertEquals("changed A1", notifications.readLine());
+            assertEquals("changed B1", notifications.readLine());
+            assertEquals("changed A2 A3", notifications.readLine());
+
+            LoadGenerator.Report report = LoadGenerator.run(server.getPort(), 4, 100, 50);
+            assertEquals(400, report.requests());
+            assertEquals(0, report.errors());
+            assertTrue(report.p99() <= report.max());
+            assertEquals(0, server.getAcceptFailures());
+            assertNull(server.getLastAcceptFailure());
+        }
+    }
+
+    //Testing cached cell displays and the table view
+    @Test
+    void testTableView() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A", 1, "5");
+        spreadsheet.setCellContent("B", 1, "=A1*2");
+        String display = spreadsheet.getCellContent("B", 1);
+        assertEquals(String.format("%.1f", 10.0), display);
+        assertSame(display, spreadsheet.getCellContent("B", 1));
+        assertSame(display, spreadsheet.getCellContent(1, 1));
+        spreadsheet.setCellContent("A", 1, "7");
+        assertEquals(String.format("%.1f", 14.0), spreadsheet.getCellContent("B", 1));
+
+        try (TableView view = new TableView(spreadsheet, 0, 1, 3, 2)) {
+            StringWriter out = new StringWriter();
+            view.render(out);
+            String[] lines = out.toString().split("\n");
+            assertEquals(6, lines.length);
+            assertTrue(lines[0].startsWith("   |A "));
+            assertTrue(lines[2].startsWith("  1|7 "));
+            assertTrue(lines[2].contains("|" + String.format("%.1f", 14.0) + " "));
+            assertTrue(lines[4].startsWith("  2|   "));
+
+            spreadsheet.setCellContent("A", 1, "8");
+            view.render(out = new StringWriter());
+            assertTrue(out.toString().contains("|" + String.format("%.1f", 16.0) + " "));
+            assertEquals(view.toString(), out.toString());
+
+            view.scrollTo(27, 10);
+            view.render(out = new StringWriter());
+            assertTrue(out.toString().startsWith("   |AB "));
+            assertTrue(out.toString().contains("\n 10|   "));
+            assertFalse(out.toString().contains("|0 "));
+        }
+    }
+
+    //Testing forks and undo/redo
+    @Test
+    void testForkAndUndo() {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A", 1, "10");
+        spreadsheet.setCellContent("A", 2, "20");
+        spreadsheet.setCellContent("B", 1, "=A1+A2");
+
+        Spreadsheet fork = spreadsheet.fork();
+        fork.setCellContent("A", 1, "100");
+        fork.setCellContent("B", 1, "=A1*A2");
+        assertEquals(2000.0, fork.evaluateFormula("=B1", "C1"));
+        assertEquals(String.format("%.1f", 30.0), spreadsheet.getCellContent("B", 1));
+        spreadsheet.setCellContent("A", 2, "5"); // the original keeps its own dependencies
+        assertEquals(String.format("%.1f", 15.0), spreadsheet.getCellContent("B", 1));
+        assertEquals(String.format("%.1f", 2000.0), fork.getCellContent("B", 1));
+        assertEquals(Set.of("A1", "A2", "B1"), spreadsheet.getDifferences(fork));
+
+        spreadsheet.setUndoLimit(2);
+        assertFalse(spreadsheet.undo());
+        spreadsheet.setCellContent("A", 1, "1");
+        spreadsheet.setCellContent("A", 1, "2");
+        spreadsheet.setCellContent("A", 1, "3");
+        assertEquals(String.format("%.1f", 8.0), spreadsheet.getCellContent("B", 1));
+        assertTrue(spreadsheet.undo());
+        assertEquals(String.format("%.1f", 7.0), spreadsheet.getCellContent("B", 1));
+        assertTrue(spreadsheet.undo());
+        assertEquals(String.format("%.1f", 6.0), spreadsheet.getCellContent("B", 1));
+        assertFalse(spreadsheet.undo()); // only two versions are kept
+        assertTrue(spreadsheet.redo());
+        assertEquals("2", spreadsheet.getCellContent("A", 1));
+
+        spreadsheet.setCellContent("A", 2, "50"); // the restored version is live, dependencies included
+        assertEquals(String.format("%.1f", 52.0), spreadsheet.getCellContent("B", 1));
+        assertFalse(spreadsheet.redo());
+        assertThrows(IllegalArgumentException.class, () -> spreadsheet.setCellContent("A", 1, "=B1"));
+        assertTrue(spreadsheet.undo());
+        assertEquals("5", spreadsheet.getCellContent("A", 2));
+
+        Spreadsheet edited = new Spreadsheet(); // no undo, so the dependency graph is never forked
+        edited.setCellContent("B", 1, "=A1+A2");
+        edited.setCellContent("C", 1, "=A3");
+        edited.setCellContent("C", 1, "1"); // A3 loses its only dependent
+        edited.setCellContent("A", 3, "4");
+        edited.setCellContent("C", 1, "=A3*2");
+        assertEquals(String.format("%.1f", 8.0), edited.getCellContent("C", 1));
+    }
+
+    //Testing CSV import and export
+    @Test
+    void testCsvImportExport() throws IOException {
+        File file = tempFile("spreadsheet.csv");
+        Files.writeString(file.toPath(),
+                "1,2.5,007\r\n\"a, \"\"quoted\"\" text\",=A1+B1,\n,,-3\n\"two\nlines\",1e3\n");
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A", 3, "old");
+        spreadsheet.setCellContent("D", 1, "=SUM(A1:C1)");
+        Spreadsheet.LoadStatistics loaded = spreadsheet.importCsv(file.getPath());
+        assertEquals(4, loaded.lines());
+        assertEquals(9, loaded.cells()); // the empty field of A3 empties it, the one of C2 changes nothing
+        assertEquals("1", spreadsheet.getCellContent("A", 1));
+        assertEquals("2.5", spreadsheet.getCellContent("B", 1));
+        assertEquals("007", spreadsheet.getCellContent("C", 1));
+        assertEquals("a, \"quoted\" text", spreadsheet.getCellContent("A", 2));
+        assertEquals(String.format("%.1f", 3.5), spreadsheet.getCellContent("B", 2));
+        assertEquals("0", spreadsheet.getCellContent("A", 3)); // emptied by an empty field
+        assertEquals("-3", spreadsheet.getCellContent("C", 3));
+        assertEquals("two\nlines", spreadsheet.getCellContent("A", 4));
+        assertEquals(1000.0, spreadsheet.getCellValue("B", 4));
+        assertEquals(String.format("%.1f", 10.5), spreadsheet.getCellContent("D", 1)); // recalculated after the import
+
+        spreadsheet.importCsv(file.getPath(), "B10");
+        assertEquals("007", spreadsheet.getCellContent("D", 10));
+        assertEquals(String.format("%.1f", 3.5), spreadsheet.getCellContent("C", 11));
+
+        spreadsheet.setCellContent("E", 1, "=A2*2"); // fails: A2 is text
+        spreadsheet.exportCsv(file.getPath());
+        List<String> lines = Files.readAllLines(file.toPath());
+        assertEquals("1,2.5,007,10.5,#ERROR", lines.get(0));
+        assertEquals("\"a, \"\"quoted\"\" text\",3.5,,,", lines.get(1));
+        assertEquals(",,-3,,", lines.get(2));
+        assertEquals("\"two", lines.get(3));
+        assertEquals("lines\",1e3,,,", lines.get(4));
+        assertEquals(15, lines.size()); // rows 1 to 13, two of them with a line break in a field
+
+        Spreadsheet imported = new Spreadsheet();
+        imported.importCsv(file.getPath());
+        assertEquals("a, \"quoted\" text", imported.getCellContent("A", 2));
+        assertEquals(3.5, imported.getCellValue("B", 2));
+        assertEquals("007", imported.getCellContent("D", 10));
+        assertEquals("#ERROR", imported.getCellContent("E", 1)); // a value, not the failing formula
+        imported.setCellContent("A", 2, "4");
+        assertEquals("#ERROR", imported.getCellContent("E", 1));
+        assertEquals("10.5", imported.getCellContent("D", 1)); // the value, not =SUM(A1:C1)
+    }
+
+    //Testing Paged storage
+    @Test
+    void testPagedStorage() throws IOException {
+        File file = tempFile("spreadsheet.pages");
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setCellContent("A", 1, "5");
+        spreadsheet.enablePaging(file.getPath(), 2);
+        for (int row = 2; row <= 5000; row++) {
+            spreadsheet.setCellContent("A", row, String.valueOf(row));
+            spreadsheet.setCellContent("B", row, "=A" + row + "*2");
+        }
+        spreadsheet.setCellContent("C", 1, "=SUM(A1:A5000)");
+        spreadsheet.setCellContent("A", 1, "1");
+        assertEquals(String.format("%.1f", 5000 * 5001 / 2.0), spreadsheet.getCellContent("C", 1));
+        assertEquals(String.format("%.1f", 4000.0), spreadsheet.getCellContent("B", 2000));
+        assertEquals("10", spreadsheet.getCellContent("A", 10));
+        assertEquals(8002.0, spreadsheet.evaluateFormula("=A4000+B2001", "D1"));
+
+        CellStore.PagingStatistics statistics = spreadsheet.getPagingStatistics();
+        assertTrue(statistics.misses() > 0);
+        assertTrue(statistics.evictions() > 0);
+        assertEquals(2, statistics.residentBlocks());
+        assertNull(new Spreadsheet().getPagingStatistics());
+        assertThrows(IllegalStateException.class, () -> spreadsheet.setConcurrentReads(true));
+    }
+
+    //Testing Lazy evaluation
+    @Test
+    void testLazyEvaluation() throws IOException {
+        Spreadsheet spreadsheet = new Spreadsheet();
+        spreadsheet.setLazyEvaluation(true);
+        AtomicInteger visits = new AtomicInteger();
+        spreadsheet.setEvaluationMonitor(new EvaluationMonitor() {
+            @Override
+            public void cellVisited(long key) {
+                visits.incrementAndGet();
+            }
+        });
+        spreadsheet.setCellContent("A", 1, "1");
+        for (int row = 2; row <= 100; row++) {
+            spreadsheet.setCellContent("A", row, "=A" + (row - 1) + "+1");
+        }
+        spreadsheet.setCellContent("A", 1, "10");
+        assertEquals(0, visits.get()); // nothing has been read yet
+
+        assertEquals(String.format("%.1f", 59.0), spreadsheet.getCellContent("A", 50));
+        assertEquals(49, visits.get()); // only what A50 needs
+        assertEquals(String.format("%.1f", 109.0), spreadsheet.getCellContent("A", 100));
+        assertEquals(99, visits.get());
+        assertEquals(108.0, spreadsheet.evaluateFormula("=A99", "B1")); // A99 is cached
+        assertEquals(100, visits.get());
+
+        spreadsheet.setCellContent("A", 1, "0");
+        spreadsheet.setCellContent("A", 1, "1");
+        assertEquals(100, visits.get());
+        try (TableView view = new TableView(spreadsheet, 0, 1, 1, 3)) {
+            StringWriter out = new StringWriter();
+            view.render(out);
+            assertTrue(out.toString().contains("|" + String.format("%.1f", 3.0) + " "));
+        }
+
+        File file = tempFile("spreadsheet.csv");
+        spreadsheet.exportCsv(file.getPath());
+        assertEquals("100", Files.readAllLines(file.toPath()).get(99));
+
+        // Readers caching values while a writer edits never leave a stale value behind
+        AtomicBoolean writing = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (writing.get()) {
+                spreadsheet.getCellContent("A", 100);
+                spreadsheet.getCellContent("A", 50);
+            }
+        });
+        Thread valueReader = new Thread(() -> {
+            while (writing.get()) {
+                spreadsheet.getCellValue("A", 75);
+                spreadsheet.evaluateFormula("=A90+A25", "B2");
+            }
+        });
+        reader.start();
+        valueReader.start();
+        for (int value = 1; value <= 200; value++) {
+            spreadsheet.setCellContent("A", 1, Integer.toString(value));
+        }
+        writing.set(false);
+        try {
+            reader.join();
+            valueReader.join();
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+        assertEquals(String.format("%.1f", 249.0), spreadsheet.getCellContent("A", 50));
+        assertEquals(String.format("%.1f", 299.0), spreadsheet.getCellContent("A", 100));
+        assertEquals(274.0, spreadsheet.getCellValue("A", 75));
+        assertEquals(289.0 + 224.0, spreadsheet.evaluateFormula("=A90+A25", "B2"));
+
+        spreadsheet.setCellContent("A", 1, "5");
+        spreadsheet.setLazyEvaluation(false); // evaluates what is stale
+        visits.set(0);
+        assertEquals(String.format("%.1f", 104.0), spreadsheet.getCellContent("A", 100));
+        assertEquals(0, visits.get());
+    }
+
 }
@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Set;
+
+// A scrollable window onto a Spreadsheet drawn as a text table, e.g. columns B..F of rows 100..119.
+// The whole table lives in one character buffer of fixed-width lines that is written out at once.
+// The view listens to the spreadsheet, so after an edit only the cells that changed are drawn
+// again; scrolling or resizing draws everything. Empty cells are left blank. Close the view to
+// stop listening.
+//
+//      |A              |B              |
+//   ---+---------------+---------------+
+//     1|5              |10.0           |
+//   ---+---------------+---------------+
+public final class TableView implements Spreadsheet.ChangeListener, AutoCloseable {
+    private static final int CELL_WIDTH = 15; // characters per cell, longer contents are cut off
+
+    private final Spreadsheet spreadsheet;
+    private int firstColumn; // column index of the leftmost column, 0 for A
+    private int firstRow;
+    private int columns;
+    private int rows;
+
+    private char[] screen = new char[0]; // the rendered table, lineLength characters per line
+    private int labelWidth; // characters for the row numbers
+    private int lineLength; // characters per line, including the line break
+    private boolean layoutStale = true; // headers and every cell have to be drawn
+    private final BitSet dirty = new BitSet(); // viewport cells (row * columns + column) to draw again
+
+    public TableView(Spreadsheet spreadsheet, int firstColumn, int firstRow, int columns, int rows) {
+        this.spreadsheet = spreadsheet;
+        scrollTo(firstColumn, firstRow);
+        resize(columns, rows);
+        spreadsheet.addChangeListener(this);
+    }
+
+    // Move the top left corner of the view to another cell
+    public synchronized void scrollTo(int firstColumn, int firstRow) {
+        if (firstColumn < 0 || firstRow < 0) {
+            throw new IllegalArgumentException("Invalid cell reference: " + firstColumn + "," + firstRow);
+        }
+        this.firstColumn = firstColumn;
+        this.firstRow = firstRow;
+        layoutStale = true;
+    }
+
+    public synchronized void resize(int columns, int rows) {
+        if (columns < 0 || rows < 0) {
+            throw new IllegalArgumentException("Invalid view size: " + columns + "x" + rows);
+        }
+        this.columns = columns;
+        this.rows = rows;
+        layoutStale = true;
+    }
+
+    // Draw every cell again on the next render, e.g. after cells were changed without recalculation
+    public synchronized void refresh() {
+        dirty.set(0, columns * rows);
+    }
+
+    @Override
+    public synchronized void cellsChanged(Set<String> cells) {
+        if (layoutStale) {
+            return; // everything is drawn anyway
+        }
+        if (cells.size() >= columns * rows) {
+            refresh(); // cheaper than looking up every changed cell
+            return;
+        }
+        for (String name : cells) {
+            long key = CellReference.parse(name).getKey();
+            int column = CellStore.columnOf(key) - firstColumn;
+            int row = CellStore.rowOf(key) - firstRow;
+            if (column >= 0 && column < columns && row >= 0 && row < rows) {
+                dirty.set(row * columns + column);
+            }
+        }
+    }
+
+    // Bring the buffer up to date and write it out in one go
+    public synchronized void render(Writer out) {
+        if (layoutStale) {
+            layout();
+        } else {
+            for (int slot = dirty.nextSetBit(0); slot >= 0; slot = dirty.nextSetBit(slot + 1)) {
+                drawCell(slot / columns, slot % columns);
+            }
+        }
+        dirty.clear();
+        try {
+            out.write(screen);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // The rendered table as it was last written
+    @Override
+    public synchronized String toString() {
+        return new String(screen);
+    }
+
+    @Override
+    public void close() {
+        spreadsheet.removeChangeListener(this);
+    }
+
+    // Size the buffer for the viewport and draw all of it
+    private void layout() {
+        labelWidth = Math.max(3, Integer.toString(firstRow + Math.max(rows - 1, 0)).length());
+        lineLength = labelWidth + 1 + columns * (CELL_WIDTH + 1) + 1;
+        int length = lineLength * (2 + 2 * rows);
+        if (screen.length != length) {
+            screen = new char[length];
+        }
+        Arrays.fill(screen, ' ');
+
+        // Column headers and the separator below every line
+        for (int column = 0; column < columns; column++) {
+            drawText(cellStart(-1, column), CellReference.columnName(firstColumn + column));
+        }
+        for (int line = 0; line < 2 + 2 * rows; line++) {
+            int start = line * lineLength;
+            if (line % 2 == 1) {
+                Arrays.fill(screen, start, start + lineLength - 1, '-');
+            }
+            char divider = line % 2 == 1 ? '+' : '|';
+            for (int column = 0; column <= columns; column++) {
+                screen[start + labelWidth + column * (CELL_WIDTH + 1)] = divider;
+            }
+            screen[start + lineLength - 1] = '\n';
+        }
+
+        for (int row = 0; row < rows; row++) {
+            String label = Integer.toString(firstRow + row);
+            label.getChars(0, label.length(), screen, (2 + 2 * row) * lineLength + labelWidth - label.length());
+            for (int column = 0; column < columns; column++) {
+                drawCell(row, column);
+            }
+        }
+        layoutStale = false;
+    }
+
+    private void drawCell(int row, int column) {
+        int start = cellStart(row, column);
+        Arrays.fill(screen, start, start + CELL_WIDTH, ' ');
+        if (!spreadsheet.isCellEmpty(firstColumn + column, firstRow + row)) { // empty cells stay blank
+            drawText(start, spreadsheet.getCellContent(firstColumn + column, firstRow + row));
+        }
+    }
+
+    // Where the text of a viewport cell starts in the buffer; row -1 is the header
+    private int cellStart(int row, int column) {
+        return (2 + 2 * row) * lineLength + labelWidth + 1 + column * (CELL_WIDTH + 1);
+    }
+
+    private void drawText(int start, String text) {
+        int length = Math.min(text.length(), CELL_WIDTH);
+        text.getChars(0, length, screen, start);
+        for (int i = start; i < start + length; i++) {
+            if (screen[i] < ' ') {
+                screen[i] = ' '; // a line break in a cell would break the layout
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// Vector API reduction behind ColumnAggregates: as many values as the CPU's widest vector holds
+// are added, compared and combined per step. Only loaded when the incubator module is present.
+final class VectorAggregates {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorAggregates() {
+    }
+
+    // Add values[from] to values[to - 1] to an aggregate
+    static void reduce(double[] values, int from, int to, Aggregate aggregate) {
+        DoubleVector sums = DoubleVector.zero(SPECIES);
+        DoubleVector mins = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+        DoubleVector maxes = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector vector = DoubleVector.fromArray(SPECIES, values, i);
+            sums = sums.add(vector);
+            mins = mins.min(vector);
+            maxes = maxes.max(vector);
+        }
+        double sum = sums.reduceLanes(VectorOperators.ADD);
+        double min = mins.reduceLanes(VectorOperators.MIN);
+        double max = maxes.reduceLanes(VectorOperators.MAX);
+        for (; i < to; i++) { // the values left over after the last full vector
+            sum += values[i];
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        aggregate.addAll(sum, min, max, to - from);
+    }
+}
@@ -0,0 +1,58 @@
+import benchmarks.Engine;
+
+import java.io.IOException;
+
+// Exposes a Spreadsheet to the benchmarks package (see benchmarks.Engine)
+public class SpreadsheetEngine implements Engine {
+    private final Spreadsheet spreadsheet;
+
+    public SpreadsheetEngine() {
+        this(new Spreadsheet());
+    }
+
+    private SpreadsheetEngine(Spreadsheet spreadsheet) {
+        this.spreadsheet = spreadsheet;
+    }
+
+    @Override
+    public void setCellContent(String column, int row, String content) {
+        spreadsheet.setCellContent(column, row, content);
+    }
+
+    @Override
+    public String getCellContent(String column, int row) {
+        return spreadsheet.getCellContent(column, row);
+    }
+
+    @Override
+    public double evaluateFormula(String formula, String currentCell) {
+        return spreadsheet.evaluateFormula(formula, currentCell);
+    }
+
+    @Override
+    public void setAggregateIndexEnabled(boolean enabled) {
+        spreadsheet.setAggregateIndexEnabled(enabled);
+    }
+
+    @Override
+    public void saveSpreadsheet(String filename) throws IOException {
+        spreadsheet.saveSpreadsheet(filename);
+    }
+
+    @Override
+    public void saveSnapshot(String filename) throws IOException {
+        spreadsheet.saveSnapshot(filename);
+    }
+
+    @Override
+    public Engine load(String filename) throws IOException {
+        Spreadsheet loaded = new Spreadsheet();
+        loaded.loadSpreadsheet(filename);
+        return new SpreadsheetEngine(loaded);
+    }
+
+    @Override
+    public Engine openSnapshot(String filename) throws IOException {
+        return new SpreadsheetEngine(Spreadsheet.openSnapshot(filename));
+    }
+}
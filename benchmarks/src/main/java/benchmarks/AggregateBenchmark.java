@@ -0,0 +1,41 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// Functions over ranges like =SUM(A1:A100000), scanned or answered by the aggregate index
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregateBenchmark {
+    @Param({"1000", "100000"})
+    int size;
+
+    @Param({"SUM", "AVERAGE", "MAX"})
+    String function;
+
+    @Param({"false", "true"})
+    boolean indexed;
+
+    private Engine sheet;
+    private String formula;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sheet = Engine.create();
+        for (int row = 1; row <= size; row++) {
+            sheet.setCellContent("A", row, Integer.toString(row % 1000));
+        }
+        sheet.setAggregateIndexEnabled(indexed);
+        formula = "=" + function + "(A1:A" + size + ")";
+    }
+
+    @Benchmark
+    public double aggregateColumn() {
+        return sheet.evaluateFormula(formula, "B1");
+    }
+}
@@ -0,0 +1,36 @@
+package benchmarks;
+
+import java.io.IOException;
+
+// The spreadsheet operations the benchmarks measure. The engine lives in the unnamed package,
+// which JMH benchmarks (and any named package) cannot refer to, so it is reached through this
+// interface and the SpreadsheetEngine adapter next to the engine. The calls are monomorphic
+// and get inlined, so the indirection does not show up in the results.
+public interface Engine {
+    void setCellContent(String column, int row, String content);
+
+    String getCellContent(String column, int row);
+
+    double evaluateFormula(String formula, String currentCell);
+
+    void setAggregateIndexEnabled(boolean enabled);
+
+    void saveSpreadsheet(String filename) throws IOException;
+
+    void saveSnapshot(String filename) throws IOException;
+
+    // A new engine with the cells of a text file
+    Engine load(String filename) throws IOException;
+
+    // A new engine backed by a binary snapshot
+    Engine openSnapshot(String filename) throws IOException;
+
+    // A new, empty spreadsheet
+    static Engine create() {
+        try {
+            return (Engine) Class.forName("SpreadsheetEngine").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Spreadsheet engine not found", e);
+        }
+    }
+}
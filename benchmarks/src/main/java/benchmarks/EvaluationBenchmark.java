@@ -0,0 +1,45 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// evaluateFormula on the last cell of chains and diamonds
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EvaluationBenchmark {
+    @Param({"1000", "10000"})
+    int size;
+
+    @Param({"CHAIN", "DIAMOND"})
+    SheetShape shape;
+
+    private Engine sheet;
+    private String storedFormula;
+    private String newFormula;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sheet = shape.generate(size);
+        String sink = shape.sink(size);
+        storedFormula = "=" + sink + "+1";
+        sheet.setCellContent("ZZ", 2, storedFormula);
+        newFormula = "=" + sink + "*2+1";
+    }
+
+    // The formula stored in the cell itself, reading the last cell of the shape
+    @Benchmark
+    public double evaluateStoredFormula() {
+        return sheet.evaluateFormula(storedFormula, "ZZ2");
+    }
+
+    // A formula that is not in the sheet and has to be compiled first
+    @Benchmark
+    public double evaluateNewFormula() {
+        return sheet.evaluateFormula(newFormula, "ZZ1");
+    }
+}
@@ -0,0 +1,66 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// Saving and loading whole sheets, as text and as binary snapshots
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({"10000", "100000"})
+    int size;
+
+    @Param({"FLAT", "CHAIN", "RANGES"})
+    SheetShape shape;
+
+    private Engine sheet;
+    private String sink;
+    private File textFile;
+    private File snapshotFile;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        sheet = shape.generate(size);
+        sink = shape.sink(size);
+        textFile = File.createTempFile("benchmark", ".txt");
+        snapshotFile = File.createTempFile("benchmark", ".snapshot");
+        outputFile = File.createTempFile("benchmark", ".out");
+        sheet.saveSpreadsheet(textFile.getPath());
+        sheet.saveSnapshot(snapshotFile.getPath());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        textFile.delete();
+        snapshotFile.delete();
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public void saveSpreadsheet() throws IOException {
+        sheet.saveSpreadsheet(outputFile.getPath());
+    }
+
+    @Benchmark
+    public double loadSpreadsheet() throws IOException {
+        return sheet.load(textFile.getPath()).evaluateFormula("=" + sink, "ZZ1");
+    }
+
+    @Benchmark
+    public void saveSnapshot() throws IOException {
+        sheet.saveSnapshot(outputFile.getPath());
+    }
+
+    @Benchmark
+    public double openSnapshot() throws IOException {
+        return sheet.openSnapshot(snapshotFile.getPath()).evaluateFormula("=" + sink, "ZZ1");
+    }
+}
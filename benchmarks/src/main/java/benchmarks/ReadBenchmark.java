@@ -0,0 +1,45 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// getCellContent on random cells of a sheet
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+    private static final int READS = 4096; // cells picked up front and read in turn
+
+    @Param({"1000", "100000"})
+    int size;
+
+    @Param({"FLAT", "RANGES"})
+    SheetShape shape;
+
+    private Engine sheet;
+    private final String[] columns = new String[READS];
+    private final int[] rows = new int[READS];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sheet = shape.generate(size);
+        Random random = new Random(42);
+        int lastRow = shape.rows(size);
+        for (int i = 0; i < READS; i++) {
+            columns[i] = SheetShape.columnName(random.nextInt(SheetShape.WIDTH));
+            rows[i] = 1 + random.nextInt(lastRow);
+        }
+    }
+
+    @Benchmark
+    public String getCellContent() {
+        int i = next++ & (READS - 1);
+        return sheet.getCellContent(columns[i], rows[i]);
+    }
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+// setCellContent including the recalculation of everything that depends on the edited cell
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecalculationBenchmark {
+    @Param({"1000", "10000"})
+    int size;
+
+    @Param({"CHAIN", "DIAMOND", "RANGES"})
+    SheetShape shape;
+
+    private Engine sheet;
+    private String sinkColumn;
+    private int sinkRow;
+    private int edits;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sheet = shape.generate(size);
+        sinkColumn = shape.sinkColumn();
+        sinkRow = shape.rows(size);
+    }
+
+    // Edit the first cell, which every other formula depends on
+    @Benchmark
+    public String editRoot() {
+        sheet.setCellContent("A", 1, Integer.toString(++edits % 100));
+        return sheet.getCellContent(sinkColumn, sinkRow);
+    }
+
+    // Edit a cell nothing depends on
+    @Benchmark
+    public void editLeaf() {
+        sheet.setCellContent("ZZ", 1 + (++edits % 1000), Integer.toString(edits));
+    }
+}
@@ -0,0 +1,74 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Functions over purely numeric columns like =SUM(A1:A100000): the engine reducing its column
+// arrays with the Vector API or with the scalar fallback, against boxing the values into a
+// List<Double> and reducing it with a Stream, as range functions used to be evaluated
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReductionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Column {
+        @Param({"1000", "100000"})
+        int size;
+
+        @Param({"SUM", "MAX"})
+        String function;
+
+        double[] values;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            values = new double[size];
+            for (int row = 1; row <= size; row++) {
+                values[row - 1] = row % 1000;
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Sheet {
+        @Param({"vector", "scalar"})
+        String reduction;
+
+        Engine engine;
+        String formula;
+
+        @Setup(Level.Trial)
+        public void setUp(Column column) {
+            // Every parameter combination runs in a JVM of its own, so this is set before the
+            // engine's classes are loaded
+            System.setProperty("spreadsheet.scalarAggregates", Boolean.toString(reduction.equals("scalar")));
+            engine = Engine.create();
+            for (int row = 1; row <= column.size; row++) {
+                engine.setCellContent("A", row, Integer.toString((int) column.values[row - 1]));
+            }
+            formula = "=" + column.function + "(A1:A" + column.size + ")";
+        }
+    }
+
+    @Benchmark
+    public double engine(Sheet sheet) {
+        return sheet.engine.evaluateFormula(sheet.formula, "B1");
+    }
+
+    @Benchmark
+    public double boxedStream(Column column) {
+        List<Double> values = new ArrayList<>(column.values.length);
+        for (double value : column.values) {
+            values.add(value);
+        }
+        return column.function.equals("SUM")
+                ? values.stream().mapToDouble(Double::doubleValue).sum()
+                : values.stream().mapToDouble(Double::doubleValue).max().orElse(0);
+    }
+}
@@ -0,0 +1,112 @@
+package benchmarks;
+
+// Generated sheets the benchmarks run on. Every shape is filled from A1, so editing A1
+// recalculates whatever depends on it, and ends in a sink cell at the end of its longest path.
+public enum SheetShape {
+    // A1 = 1, A2 = A1+1, ...: every cell depends on the one above it
+    CHAIN {
+        @Override
+        void fill(Engine sheet, int size) {
+            sheet.setCellContent("A", 1, "1");
+            for (int row = 2; row <= rows(size); row++) {
+                sheet.setCellContent("A", row, "=A" + (row - 1) + "+1");
+            }
+        }
+
+        @Override
+        int rows(int size) {
+            return Math.max(2, size);
+        }
+    },
+    // Rows of WIDTH cells where each cell adds two cells of the row above, so paths
+    // split and join again between the first row and the last
+    DIAMOND {
+        @Override
+        void fill(Engine sheet, int size) {
+            for (int col = 0; col < WIDTH; col++) {
+                sheet.setCellContent(columnName(col), 1, Integer.toString(col + 1));
+            }
+            for (int row = 2; row <= rows(size); row++) {
+                for (int col = 0; col < WIDTH; col++) {
+                    String left = columnName(col) + (row - 1);
+                    String right = columnName((col + 1) % WIDTH) + (row - 1);
+                    sheet.setCellContent(columnName(col), row, "=" + left + "+" + right);
+                }
+            }
+        }
+
+        @Override
+        int rows(int size) {
+            return Math.max(2, size / WIDTH);
+        }
+    },
+    // Numbers in column A and running totals over the last WINDOW of them in column B
+    RANGES {
+        @Override
+        void fill(Engine sheet, int size) {
+            for (int row = 1; row <= rows(size); row++) {
+                sheet.setCellContent("A", row, Integer.toString(row % 97));
+            }
+            for (int row = 1; row <= rows(size); row++) {
+                sheet.setCellContent("B", row, "=SUM(A" + Math.max(1, row - WINDOW + 1) + ":A" + row + ")");
+            }
+        }
+
+        @Override
+        int rows(int size) {
+            return Math.max(1, size / 2);
+        }
+
+        @Override
+        String sinkColumn() {
+            return "B";
+        }
+    },
+    // Plain numbers in WIDTH columns, no formulas at all
+    FLAT {
+        @Override
+        void fill(Engine sheet, int size) {
+            for (int row = 1; row <= rows(size); row++) {
+                for (int col = 0; col < WIDTH; col++) {
+                    sheet.setCellContent(columnName(col), row, Integer.toString(row * WIDTH + col));
+                }
+            }
+        }
+
+        @Override
+        int rows(int size) {
+            return Math.max(1, size / WIDTH);
+        }
+    };
+
+    static final int WIDTH = 8; // columns of the DIAMOND and FLAT shapes
+    static final int WINDOW = 16; // cells summed by each RANGES formula
+
+    // Put about size cells of this shape into a sheet
+    abstract void fill(Engine sheet, int size);
+
+    // Number of rows used for about size cells
+    abstract int rows(int size);
+
+    // Column of the sink cell
+    String sinkColumn() {
+        return "A";
+    }
+
+    // Name of the sink cell, e.g. "A1000"
+    String sink(int size) {
+        return sinkColumn() + rows(size);
+    }
+
+    // A new sheet of this shape with about size cells
+    Engine generate(int size) {
+        Engine sheet = Engine.create();
+        fill(sheet, size);
+        return sheet;
+    }
+
+    // Letters of the first 26 columns: 0 -> A
+    static String columnName(int index) {
+        return String.valueOf((char) ('A' + index));
+    }
+}